@@ -0,0 +1,131 @@
+/*-
+ * #%L
+ * primibuf-benchmarks
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package com.diffbot.primibuf.benchmarks;
+
+import com.diffbot.primibuf.benchmarks.messages.ReadOnlyBatchDecodeMessages.Record;
+import com.diffbot.primibuf.runtime.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how decoding a batch of length-delimited records scales with the
+ * number of threads. A parallelism of one runs on the calling thread only, so
+ * it serves as the sequential baseline. The records are generated from
+ * batch_decode.proto.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@State(Scope.Benchmark)
+public class BatchDecodeBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(".*" + BatchDecodeBenchmark.class.getSimpleName() + ".*")
+                .build()).run();
+    }
+
+    @Param({"1", "2", "4", "8", "16"})
+    int threads;
+
+    @Param({"100000"})
+    int count;
+
+    @Setup
+    public void setup() throws IOException {
+        final Random rnd = new Random(0);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final StreamSink sink = ProtoSink.newInstance(bytes);
+        final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        final StreamSink recordSink = ProtoSink.newInstance(recordBytes);
+        for (int i = 0; i < count; i++) {
+            final double[] values = new double[rnd.nextInt(16)];
+            for (int j = 0; j < values.length; j++) {
+                values[j] = rnd.nextDouble();
+            }
+            recordBytes.reset();
+            recordSink.writeRawVarint32(8);
+            recordSink.writeInt64NoTag(rnd.nextLong());
+            recordSink.writeRawVarint32(18);
+            recordSink.writeStringNoTag("record-" + rnd.nextInt(100_000));
+            recordSink.writePackedDouble(26, values, values.length);
+            recordSink.flush();
+
+            final byte[] payload = recordBytes.toByteArray();
+            sink.writeRawVarint32(payload.length);
+            sink.writeRawBytes(payload);
+            payloads.add(payload);
+        }
+        sink.flush();
+        delimited = bytes.toByteArray();
+
+        pool = new ForkJoinPool(threads);
+        decoder = threads == 1 ?
+                BatchDecoder.newInstance(Record.getFactory(), pool).withChunkSize(Integer.MAX_VALUE) :
+                BatchDecoder.newInstance(Record.getFactory(), pool);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public List<Record> decodeDelimited() throws IOException {
+        return decoder.decodeDelimited(delimited);
+    }
+
+    @Benchmark
+    public List<Record> decodePayloads() throws IOException {
+        return decoder.decode(payloads);
+    }
+
+    @Benchmark
+    public int sequentialBaseline() throws IOException {
+        final DelimitedReader reader = DelimitedReader.newInstance(delimited);
+        int n = 0;
+        while (reader.readNext(Record.newInstance())) {
+            n++;
+        }
+        return n;
+    }
+
+    private final List<byte[]> payloads = new ArrayList<>();
+    private byte[] delimited;
+    private ForkJoinPool pool;
+    private BatchDecoder<Record> decoder;
+
+}
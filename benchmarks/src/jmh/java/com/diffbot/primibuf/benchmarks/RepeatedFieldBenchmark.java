@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * primibuf-benchmarks
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.benchmarks;
+
+import com.diffbot.primibuf.runtime.ProtoSource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the single-pass decoding of non-packed repeated fields against the
+ * previously generated code that skipped all elements to count them, rewound,
+ * and then decoded them again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@State(Scope.Thread)
+public class RepeatedFieldBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(".*" + RepeatedFieldBenchmark.class.getSimpleName() + ".*")
+                .build()).run();
+    }
+
+    @Param({"10", "100", "1000"})
+    int count;
+
+    @Setup
+    public void setup() throws IOException {
+        final Random rnd = new Random(0);
+        final ByteArrayOutputStream int64s = new ByteArrayOutputStream();
+        final ByteArrayOutputStream strings = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            int64s.write(INT64_TAG);
+            writeVarint(int64s, rnd.nextInt(4) == 0 ? rnd.nextLong() : rnd.nextInt(100_000));
+
+            strings.write(STRING_TAG);
+            final byte[] value = ("id-" + rnd.nextInt(100_000)).getBytes("UTF-8");
+            writeVarint(strings, value.length);
+            strings.write(value);
+        }
+        int64Data = int64s.toByteArray();
+        stringData = strings.toByteArray();
+    }
+
+    @Benchmark
+    public long[] int64SinglePass() throws IOException {
+        source.setInput(int64Data);
+        source.readTag();
+        return source.readRepeatedInt64((long[]) null, INT64_TAG);
+    }
+
+    @Benchmark
+    public long[] int64DoubleScan() throws IOException {
+        source.setInput(int64Data);
+        source.readTag();
+        final int count = ProtoSource.getRepeatedFieldArrayLength(source, INT64_TAG);
+        final long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = source.readInt64();
+            if (i != count - 1) {
+                source.readTag();
+            }
+        }
+        return values;
+    }
+
+    @Benchmark
+    public String[] stringSinglePass() throws IOException {
+        source.setInput(stringData);
+        source.readTag();
+        return source.readRepeatedString(null, STRING_TAG);
+    }
+
+    @Benchmark
+    public String[] stringDoubleScan() throws IOException {
+        source.setInput(stringData);
+        source.readTag();
+        final int count = ProtoSource.getRepeatedFieldArrayLength(source, STRING_TAG);
+        final String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = source.readString();
+            if (i != count - 1) {
+                source.readTag();
+            }
+        }
+        return values;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static final int INT64_TAG = 8; // field 1, varint
+    private static final int STRING_TAG = 18; // field 2, length delimited
+    private final ProtoSource source = ProtoSource.newInstance();
+    private byte[] int64Data;
+    private byte[] stringData;
+
+}
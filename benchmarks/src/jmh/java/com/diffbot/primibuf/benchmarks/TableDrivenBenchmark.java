@@ -0,0 +1,129 @@
+/*-
+ * #%L
+ * primibuf-benchmarks
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package com.diffbot.primibuf.benchmarks;
+
+import com.diffbot.primibuf.benchmarks.messages.ReadOnlySwitchMessages;
+import com.diffbot.primibuf.benchmarks.messages.ReadOnlyTableMessages;
+import com.diffbot.primibuf.runtime.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the generated switch against the table-driven mode (see {@link FieldTable})
+ * for a small message and for a very wide message with 400 fields. The mergeFrom
+ * method of the wide switch exceeds the JIT's limit for huge methods (8000 bytes
+ * of bytecode), so it only ever runs in the interpreter. The table-driven mode
+ * runs the same shared loop for both. The messages are generated from the same
+ * definitions in table_driven_switch.proto and table_driven_table.proto, and only
+ * the latter enables the table_driven option.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@State(Scope.Thread)
+public class TableDrivenBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(".*" + TableDrivenBenchmark.class.getSimpleName() + ".*")
+                .build()).run();
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        final Random rnd = new Random(0);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        StreamSink sink = ProtoSink.newInstance(bytes);
+        sink.writeRawVarint32(8);
+        sink.writeInt64NoTag(rnd.nextInt(100_000));
+        sink.writeRawVarint32(18);
+        sink.writeStringNoTag("name-" + rnd.nextInt(100_000));
+        sink.writeRawVarint32(25);
+        sink.writeDoubleNoTag(rnd.nextDouble());
+        sink.writeRawVarint32(32);
+        sink.writeBoolNoTag(true);
+        final int[] values = new int[8];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = rnd.nextInt(1000);
+        }
+        sink.writePackedInt32(42, values, values.length);
+        sink.flush();
+        smallData = bytes.toByteArray();
+
+        bytes = new ByteArrayOutputStream();
+        sink = ProtoSink.newInstance(bytes);
+        for (int number = 1; number <= WIDE_FIELD_COUNT; number++) {
+            if (number % 4 == 0) {
+                sink.writeRawVarint32((number << 3) | 1);
+                sink.writeDoubleNoTag(rnd.nextDouble());
+            } else {
+                sink.writeRawVarint32(number << 3);
+                sink.writeInt64NoTag(rnd.nextInt(4) == 0 ? rnd.nextLong() : rnd.nextInt(100_000));
+            }
+        }
+        sink.flush();
+        wideData = bytes.toByteArray();
+    }
+
+    @Benchmark
+    public ReadOnlySwitchMessages.Small smallSwitch() throws IOException {
+        return smallSwitch.clear().mergeFrom(source.setInput(smallData));
+    }
+
+    @Benchmark
+    public ReadOnlyTableMessages.Small smallTable() throws IOException {
+        return smallTable.clear().mergeFrom(source.setInput(smallData));
+    }
+
+    @Benchmark
+    public ReadOnlySwitchMessages.Wide wideSwitch() throws IOException {
+        return wideSwitch.clear().mergeFrom(source.setInput(wideData));
+    }
+
+    @Benchmark
+    public ReadOnlyTableMessages.Wide wideTable() throws IOException {
+        return wideTable.clear().mergeFrom(source.setInput(wideData));
+    }
+
+    private static final int WIDE_FIELD_COUNT = 400;
+
+    private final ProtoSource source = ProtoSource.newInstance();
+    private final ReadOnlySwitchMessages.Small smallSwitch = ReadOnlySwitchMessages.Small.newInstance();
+    private final ReadOnlyTableMessages.Small smallTable = ReadOnlyTableMessages.Small.newInstance();
+    private final ReadOnlySwitchMessages.Wide wideSwitch = ReadOnlySwitchMessages.Wide.newInstance();
+    private final ReadOnlyTableMessages.Wide wideTable = ReadOnlyTableMessages.Wide.newInstance();
+    private byte[] smallData;
+    private byte[] wideData;
+
+}
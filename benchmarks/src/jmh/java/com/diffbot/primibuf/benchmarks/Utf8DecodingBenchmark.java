@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * primibuf-benchmarks
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.benchmarks;
+
+import com.diffbot.primibuf.runtime.ProtoSource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares ProtoSource::readString against the previous implementation that
+ * decoded every string with new String(bytes, offset, length, UTF_8). Each
+ * operation decodes 1000 length-delimited strings.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@State(Scope.Thread)
+public class Utf8DecodingBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(".*" + Utf8DecodingBenchmark.class.getSimpleName() + ".*")
+                .build()).run();
+    }
+
+    /** ascii: ids and type names, mixed: mostly ascii with some multi-byte characters */
+    @Param({"ascii", "mixed"})
+    String content;
+
+    /** encoded bytes per string. Kept below 128 so that the length prefix is a single byte */
+    @Param({"8", "32", "100"})
+    int length;
+
+    @Setup
+    public void setup() throws IOException {
+        final Random rnd = new Random(0);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < NUM_STRINGS; i++) {
+            final StringBuilder str = new StringBuilder();
+            while (str.toString().getBytes(StandardCharsets.UTF_8).length < length) {
+                if ("mixed".equals(content) && rnd.nextInt(16) == 0) {
+                    str.append(NON_ASCII.charAt(rnd.nextInt(NON_ASCII.length())));
+                } else {
+                    str.append((char) ('a' + rnd.nextInt(26)));
+                }
+            }
+            final byte[] utf8 = str.toString().getBytes(StandardCharsets.UTF_8);
+            bytes.write(utf8.length);
+            bytes.write(utf8);
+        }
+        data = bytes.toByteArray();
+    }
+
+    @Benchmark
+    public void readString(Blackhole bh) throws IOException {
+        source.setInput(data);
+        for (int i = 0; i < NUM_STRINGS; i++) {
+            bh.consume(source.readString());
+        }
+    }
+
+    @Benchmark
+    public void newStringUtf8(Blackhole bh) {
+        final byte[] data = this.data;
+        int pos = 0;
+        for (int i = 0; i < NUM_STRINGS; i++) {
+            final int size = data[pos++];
+            bh.consume(new String(data, pos, size, StandardCharsets.UTF_8));
+            pos += size;
+        }
+    }
+
+    private static final int NUM_STRINGS = 1000;
+    private static final String NON_ASCII = "äöüßéèñ€中文";
+    private final ProtoSource source = ProtoSource.newInstance();
+    private byte[] data;
+
+}
@@ -25,6 +25,7 @@ package com.diffbot.primibuf;
 import com.squareup.javapoet.*;
 
 import javax.lang.model.element.Modifier;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.function.Consumer;
 
@@ -49,10 +50,12 @@ public class FieldGenerator {
                 .addJavadoc(named("$commentLine:L"))
                 .addModifiers(Modifier.PRIVATE);
 
-        if (info.isRepeated() && info.isMessageOrGroup()) {
-            field.addModifiers(Modifier.FINAL).initializer("$T.newEmptyInstance($T.getFactory())", com.diffbot.primibuf.RuntimeClasses.RepeatedMessage, info.getTypeName());
+        if (info.isLazilyAllocated()) {
+            // allocated on first modification, see generateAllocationCode
         } else if (info.isRepeated() && info.isEnum()) {
             field.addModifiers(Modifier.FINAL).initializer("$T.newEmptyInstance($T.converter())", com.diffbot.primibuf.RuntimeClasses.RepeatedEnum, info.getTypeName());
+        } else if (info.isPrimitiveStore()) {
+            field.addModifiers(Modifier.FINAL).initializer("$T.newEmptyInstance()", storeType);
         } else if (info.isRepeated() && info.isPrimitive()) {
             // for primitive arrays (such as int[]), we initialize them to null and only allocate array on demand
             // thus there is no final modifier
@@ -63,6 +66,12 @@ public class FieldGenerator {
             field.initializer("null");
         } else if (info.isRepeated()) {
             field.addModifiers(Modifier.FINAL).initializer("$T.newEmptyInstance()", storeType);
+        } else if (info.isByteSlice()) {
+            if (!info.hasDefaultValue()) {
+                field.addModifiers(Modifier.FINAL).initializer(named("$storeType:T.newEmptyInstance()"));
+            } else {
+                field.addModifiers(Modifier.FINAL).initializer(named("$storeType:T.newInstance($defaultField:N)"));
+            }
         } else if (info.isBytes()) {
             if (!info.hasDefaultValue()) {
                 field.initializer("null");
@@ -70,8 +79,12 @@ public class FieldGenerator {
                 // TODO: fix this
                 field.initializer(named("$storeType:T.newInstance($defaultField:N)"));
             }
-        } else if (info.isMessageOrGroup()) {
-            field.addModifiers(Modifier.FINAL).initializer("$T.newInstance()", storeType);
+        } else if (info.isLazyString()) {
+            if (!info.hasDefaultValue()) {
+                field.addModifiers(Modifier.FINAL).initializer(named("$storeType:T.newEmptyInstance()"));
+            } else {
+                field.addModifiers(Modifier.FINAL).initializer(named("$storeType:T.newInstance($default:S)"));
+            }
         } else if (info.isString()) {
             // string can be mutable
             if (!info.hasDefaultValue()) {
@@ -88,6 +101,14 @@ public class FieldGenerator {
         }
         type.addField(field.build());
 
+        if (info.isRepeated() && info.isLazilyAllocated()) {
+            // shared empty store that gets returned while the field is not allocated
+            type.addField(FieldSpec.builder(storeType, info.getDefaultFieldName())
+                    .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                    .initializer(named("$initializer:L.makeImmutable()"))
+                    .build());
+        }
+
         if (info.isBytes() && info.hasDefaultValue()) {
             // byte[] default values are stored as utf8 strings, so we need to convert it first
             type.addField(FieldSpec.builder(ArrayTypeName.get(byte[].class), info.getDefaultFieldName())
@@ -98,7 +119,11 @@ public class FieldGenerator {
     }
 
     protected void generateEqualsStatement(MethodSpec.Builder method) {
-        if (info.isRepeated() || info.isBytes() || info.isMessageOrGroup() || info.isString()) {
+        if (storeType instanceof ArrayTypeName) {
+            // bare arrays (e.g. bytes or int[]) need to be compared by content
+            method.addCode("$T.equals($N, other.$N)", Arrays.class, info.getFieldName(), info.getFieldName());
+
+        } else if (info.isRepeated() || info.isBytes() || info.isMessageOrGroup() || info.isString()) {
             method.addNamedCode("$field:N.equals(other.$field:N)", m);
 
         } else if (typeName == TypeName.DOUBLE) {
@@ -115,80 +140,98 @@ public class FieldGenerator {
         }
     }
 
+    /**
+     * Generates a hash of the field value that is consistent with
+     * the comparison in generateEqualsStatement
+     */
+    protected void generateHashCodeStatement(MethodSpec.Builder method) {
+        if (storeType instanceof ArrayTypeName) {
+            method.addCode("$T.hashCode($N)", Arrays.class, info.getFieldName());
+
+        } else if (info.isRepeated() || info.isBytes() || info.isMessageOrGroup() || info.isString()) {
+            method.addNamedCode("$field:N.hashCode()", m);
+
+        } else if (typeName == TypeName.DOUBLE) {
+            method.addNamedCode("Double.hashCode($field:N)", m);
+
+        } else if (typeName == TypeName.FLOAT) {
+            method.addNamedCode("Float.hashCode($field:N)", m);
+
+        } else if (typeName == TypeName.LONG) {
+            method.addNamedCode("Long.hashCode($field:N)", m);
+
+        } else if (typeName == TypeName.BOOLEAN) {
+            method.addNamedCode("Boolean.hashCode($field:N)", m);
+
+        } else if (info.isPrimitive() || info.isEnum()) {
+            method.addNamedCode("$field:N", m);
+
+        } else {
+            throw new IllegalStateException("unhandled field: " + info.getDescriptor());
+        }
+    }
+
     protected void generateMergingCode(MethodSpec.Builder method) {
-        if (info.isRepeated() && info.isPrimitive()) {
+        if (info.isPrimitiveStore()) {
+            // values get appended to the existing store
             method
                     .addCode(clearOtherOneOfs)
-                    // find the size of continuous items
-                    .addStatement(named("int count = $protoSource:T.getRepeatedFieldArrayLength(input, $tag:L)"))
-
-                    // initialize or resize array
-                    .beginControlFlow("if ($N == null)", info.getFieldName())
-                    .addStatement(named("$field:N = new $primitiveType:L[count]"))
-                    .nextControlFlow("else")
-                    .addComment("TODO: resize existing array")
-                    .endControlFlow()
-
-                    // read data
-                    .beginControlFlow("for (int i = 0; i < count; i++)")
-                    .addStatement(named("$field:N[i] = input.read$capitalizedType:L()"))
-                    .beginControlFlow("if (i != count -1)")
-                    .addStatement("input.readTag()") // discard tag
-                    .endControlFlow()
-                    .endControlFlow()
-
+                    .addStatement(named("input.readRepeated$capitalizedType:L($field:N, $tag:L)"))
+                    .addStatement(named("$setHas:L"));
+        } else if (info.isRepeated() && info.isPrimitive()) {
+            // consecutive values get decoded in a single pass and appended at once
+            method
+                    .addCode(clearOtherOneOfs)
+                    .addStatement(named("$field:N = input.readRepeated$capitalizedType:L($field:N, $tag:L)"))
                     .addStatement(named("$setHas:L"));
         } else if (info.isRepeated() && info.isString()) {
             method
                     .addCode(clearOtherOneOfs)
-                    // find the size of continuous items
-                    .addStatement(named("int count = $protoSource:T.getRepeatedFieldArrayLength(input, $tag:L)"))
-
-                    // initialize or resize array
-                    .beginControlFlow("if ($N == null)", info.getFieldName())
-                    .addStatement(named("$field:N = new String[count]"))
-                    .nextControlFlow("else")
-                    .addComment("TODO: resize existing array")
-                    .endControlFlow()
-
-                    // read data
-                    .beginControlFlow("for (int i = 0; i < count; i++)")
-                    .addStatement(named("$field:N[i] = input.read$capitalizedType:L()"))
-                    .beginControlFlow("if (i != count -1)")
-                    .addStatement("input.readTag()") // discard tag
-                    .endControlFlow()
-                    .endControlFlow()
-
+                    .addStatement("$N = input.$N($N, $L)", info.getFieldName(),
+                            info.isInternedString() ? "readRepeatedInternedString" : "readRepeatedString",
+                            info.getFieldName(), info.getTag())
+                    .addStatement(named("$setHas:L"));
+        } else if (info.isRepeated() && info.isEnum()) {
+            // the store grows by an amortized factor, so there is no need to look ahead
+            method
+                    .addCode(clearOtherOneOfs)
+                    .addStatement("int nextTagPosition")
+                    .addNamedCode("do {$>\n" +
+                            "$field:N.addValue(input.readEnum());\n" +
+                            "nextTagPosition = input.getPosition();\n" +
+                            "$<} while (input.readTag() == $tag:L);\n" +
+                            "input.rewindToPosition(nextTagPosition);\n", m)
                     .addStatement(named("$setHas:L"));
         } else if (info.isRepeated()) {
+            // elements get created on demand and the store grows by an amortized
+            // factor, so there is no need to look ahead
             method
                     .addCode(clearOtherOneOfs)
+                    .addCode(generateAllocationCode())
                     .addStatement("int nextTagPosition")
                     .addNamedCode("do {$>\n" +
-                            "// look ahead for more items so we resize only once\n" +
-                            "if ($field:N.remainingCapacity() == 0) {$>\n" +
-                            "int count = $protoSource:T.getRepeatedFieldArrayLength(input, $tag:L);\n" +
-                            "$field:N.reserve(count);\n" +
-                            "$<}\n", m)
-                    .addCode(code(block -> {
-                        if (info.isPrimitive()) {
-                            block.addNamed("$field:N.add(input.read$capitalizedType:L());\n", m);
-                        } else if (info.isEnum()) {
-                            block.addNamed("$field:N.addValue(input.read$capitalizedType:L());\n", m);
-                        } else {
-                            block.addNamed("input.read$capitalizedType:L($field:N.next()$secondArgs:L);\n", m);
-                        }
-                    }))
-                    .addNamedCode("" +
+                            "input.read$capitalizedType:L($field:N.next()$secondArgs:L);\n" +
                             "nextTagPosition = input.getPosition();\n" +
                             "$<} while (input.readTag() == $tag:L);\n" +
                             "input.rewindToPosition(nextTagPosition);\n", m)
                     .addStatement(named("$setHas:L"));
 
+        } else if (info.isLazyString()) {
+            method
+                    .addCode(clearOtherOneOfs)
+                    .addStatement(named("input.readString($field:N)"))
+                    .addStatement(named("$setHas:L"));
+
         } else if (info.isString()) {
             method
                     .addCode(clearOtherOneOfs)
-                    .addStatement(named("$field:N$secondArgs:L = input.readString()"))
+                    .addStatement(named("$field:N$secondArgs:L = input.$readString:L()"))
+                    .addStatement(named("$setHas:L"));
+
+        } else if (info.isByteSlice()) {
+            method
+                    .addCode(clearOtherOneOfs)
+                    .addStatement(named("input.readBytes($field:N)"))
                     .addStatement(named("$setHas:L"));
 
         } else if (info.isBytes()) {
@@ -200,6 +243,7 @@ public class FieldGenerator {
         } else if (info.isMessageOrGroup()) {
             method
                     .addCode(clearOtherOneOfs)
+                    .addCode(generateAllocationCode())
                     .addStatement(named("input.read$capitalizedType:L($field:N$secondArgs:L)"))
                     .addStatement(named("$setHas:L"));
 
@@ -225,90 +269,219 @@ public class FieldGenerator {
     }
 
     protected void generateMergingCodeFromPacked(MethodSpec.Builder method) {
-        if (info.isFixedWidth()) {
+        if (info.isPrimitiveStore()) {
 
-            // For fixed width types we can copy the raw memory
             method.addCode(clearOtherOneOfs);
             method.addStatement(named("input.readPacked$capitalizedType:L($field:N)"));
             method.addStatement(named("$setHas:L"));
 
-        } else if (info.isEnum()) {
+        } else if (info.isPrimitive()) {
 
-            // We don't know how many items there actually are, so we need to
-            // look-ahead once we run out of space in the backing store.
-            method
-                    .addCode(clearOtherOneOfs)
-                    .addStatement("final int length = input.readRawVarint32()")
-                    .addStatement("final int limit = input.pushLimit(length)")
-                    .beginControlFlow("while (input.getBytesUntilLimit() > 0)")
-
-                    // Defer count-checks until we run out of capacity
-                    .addComment("look ahead for more items so we resize only once")
-                    .beginControlFlow("if ($N.remainingCapacity() == 0)", info.getFieldName())
-                    .addStatement("final int position = input.getPosition()")
-                    .addStatement("int count = 0")
-                    .beginControlFlow("while (input.getBytesUntilLimit() > 0)")
-                    .addStatement(named("input.read$capitalizedType:L()"))
-                    .addStatement("count++")
-                    .endControlFlow()
-                    .addStatement("input.rewindToPosition(position)")
-                    .addStatement(named("$field:N.reserve(count)"))
-                    .endControlFlow()
+            // Fixed width types get copied as raw memory, and varints get counted
+            // up front so that they can be decoded in a single pass. The values get
+            // appended, so the result may be a new array.
+            method.addCode(clearOtherOneOfs);
+            method.addStatement(named("$field:N = input.readPacked$capitalizedType:L($field:N)"));
+            method.addStatement(named("$setHas:L"));
 
-                    // Add data
-                    .addStatement(named(info.isPrimitive() ?
-                            "$field:N.add(input.read$capitalizedType:L())" :
-                            "$field:N.addValue(input.read$capitalizedType:L())"))
-                    .endControlFlow()
+        } else if (info.isEnum()) {
 
-                    .addStatement("input.popLimit(limit)")
-                    .addStatement(named("$setHas:L"));
+            method.addCode(clearOtherOneOfs);
+            method.addStatement(named("input.readPackedEnum($field:N)"));
+            method.addStatement(named("$setHas:L"));
+
+        } else {
+            // Only primitives and enums can be packed
+            throw new IllegalStateException("unhandled field: " + info.getDescriptor());
+        }
+    }
 
+    /**
+     * Returns the name of the FieldTable kind that decodes the field in table-driven
+     * mode, or CUSTOM for fields that need more than storing the value in a member.
+     * Custom fields get merged by the code of generateMergingCode.
+     *
+     * @param packed whether the kind is for the packed tag of a packable field
+     */
+    protected String getTableKind(boolean packed) {
+        final String type = info.getDescriptor().getType().name().substring("TYPE_".length());
+        if (!clearOtherOneOfs.isEmpty()) {
+            return "CUSTOM";
+        } else if (info.isPrimitiveStore() && !info.isBytes()) {
+            return (packed ? "PACKED_" : "REPEATED_") + type;
+        } else if (info.isRepeated() || info.isEnum() || info.isMessageOrGroup()) {
+            return "CUSTOM";
+        } else if (info.isLazyString()) {
+            return "UTF8_STRING";
+        } else if (info.isString()) {
+            return info.isInternedString() ? "INTERNED_STRING" : "STRING";
+        } else if (info.isByteSlice()) {
+            return "BYTE_SLICE";
+        } else if (info.isBytes()) {
+            return "BYTES";
         } else if (info.isPrimitive()) {
-            // optimized way to read into primitive arrays
+            return type;
+        }
+        return "CUSTOM";
+    }
 
-            // We don't know how many items there actually are, so we need to
-            // look-ahead once we run out of space in the backing store.
-            method
-                    .addCode(clearOtherOneOfs)
-                    .addStatement("final int length = input.readRawVarint32()")
-                    .addStatement("final int limit = input.pushLimit(length)")
-                    .beginControlFlow("if (input.getBytesUntilLimit() > 0)")
-
-                    // Defer count-checks until we run out of capacity
-                    .addComment("look ahead for more items so we resize only once")
-                    .addStatement("int count = 0")
-                    .addStatement("final int position = input.getPosition()")
-                    .beginControlFlow("while (input.getBytesUntilLimit() > 0)")
-                    .addStatement(named("input.read$capitalizedType:L()"))
-                    .addStatement("count++")
-                    .endControlFlow()
-                    .addStatement("input.rewindToPosition(position)")
+    /**
+     * Resets the value without touching the has state. Nested messages and
+     * repeated stores keep their allocated memory so that the message can be
+     * reused. Bare arrays have no separate length, so they get dropped.
+     */
+    protected void generateClearCode(MethodSpec.Builder method) {
+        if (info.isRepeated() && (info.isString() || (info.isPrimitive() && !info.isPrimitiveStore()))) {
+            method.addStatement(named("$field:N = null"));
 
-                    .beginControlFlow("if ($N == null)", info.getFieldName())
-                    .addStatement(named("$field:N = new $primitiveType:L[count]"))
-                    .nextControlFlow("else")
-                    .addComment("TODO: resize existing array")
-                    .endControlFlow()
+        } else if (info.isLazilyAllocated()) {
+            method.beginControlFlow(named("if ($field:N != null)"))
+                    .addStatement(named("$field:N.clear()"))
+                    .endControlFlow();
+
+        } else if (info.isRepeated()) {
+            method.addStatement(named("$field:N.clear()"));
+
+        } else if (info.isLazyString()) {
+            method.addStatement(named(info.hasDefaultValue() ? "$field:N.copyFrom($default:S)" : "$field:N.clear()"));
+
+        } else if (info.isByteSlice()) {
+            method.addStatement(named(info.hasDefaultValue() ? "$field:N.copyFrom($defaultField:N)" : "$field:N.clear()"));
+
+        } else if (info.isBytes()) {
+            method.addStatement(named(info.hasDefaultValue() ? "$field:N = $defaultField:N.clone()" : "$field:N = null"));
+
+        } else if (info.isString()) {
+            method.addStatement(named(info.hasDefaultValue() ? "$field:N = $default:S" : "$field:N = null"));
+
+        } else if (info.isPrimitive() || info.isEnum()) {
+            method.addStatement(named("$field:N = $default:L"));
+
+        } else {
+            throw new IllegalStateException("unhandled field: " + info.getDescriptor());
+        }
+    }
+
+    protected void generateSerializationCode(MethodSpec.Builder method) {
+        method.beginControlFlow(named("if ($getHas:L)"));
+        if (info.isPacked()) {
+            method.addStatement(named("output.writePacked$capitalizedType:L($packedTag:L, $arrayArgs:L)"));
+
+        } else if (info.isRepeated() && (info.isPrimitive() || info.isEnum() || info.isString())) {
+            method.addStatement(named("output.writeRepeated$capitalizedType:L($tag:L, $arrayArgs:L)"));
+
+        } else if (info.isRepeated()) {
+            method.addStatement(named("output.writeRepeated$capitalizedType:L($tag:L, $field:N)"));
+
+        } else {
+            method.addStatement(named("output.writeRawVarint32($tag:L)"))
+                    .addStatement(named("output.write$capitalizedType:LNoTag($field:N$groupArgs:L)"));
+        }
+        method.endControlFlow();
+    }
+
+    protected void generateComputeSerializedSizeCode(MethodSpec.Builder method) {
+        method.beginControlFlow(named("if ($getHas:L)"));
+        if (info.isPacked()) {
+            method.addStatement(named("size += $protoSink:T.computePacked$capitalizedType:LSize($packedTag:L, $arrayArgs:L)"));
+
+        } else if (info.isRepeated() && (info.isPrimitive() || info.isEnum() || info.isString())) {
+            method.addStatement(named("size += $protoSink:T.computeRepeated$capitalizedType:LSize($tag:L, $arrayArgs:L)"));
+
+        } else if (info.isRepeated()) {
+            method.addStatement(named("size += $protoSink:T.computeRepeated$capitalizedType:LSize($tag:L, $field:N)"));
+
+        } else {
+            method.addStatement(named("size += $bytesPerTag:L + $protoSink:T.compute$capitalizedType:LSizeNoTag($field:N$groupArgs:L)"));
+        }
+        method.endControlFlow();
+    }
 
-                    // Add data
-                    .beginControlFlow("for (int i = 0; i < count; i++)")
-                    .addStatement(named("$field:N[i] = input.read$capitalizedType:L()"))
+    /**
+     * Copies the value and reuses the existing memory where possible. Fields
+     * that are not set hold their cleared values, so there is no need to check
+     * the has state.
+     */
+    protected void generateCopyFromCode(MethodSpec.Builder method) {
+        if (storeType instanceof ArrayTypeName) {
+            // bare arrays have no separate length, so they can only be reused if the length matches
+            method.beginControlFlow(named("if (other.$field:N == null)"))
+                    .addStatement(named("$field:N = null"))
+                    .nextControlFlow(named("else"))
+                    .beginControlFlow(named("if ($field:N == null || $field:N.length != other.$field:N.length)"))
+                    .addStatement(named("$field:N = new $componentType:T[other.$field:N.length]"))
                     .endControlFlow()
+                    .addStatement(named("System.arraycopy(other.$field:N, 0, $field:N, 0, other.$field:N.length)"))
+                    .endControlFlow();
+
+        } else if (info.isLazilyAllocated()) {
+            method.beginControlFlow(named("if (other.$field:N != null)"))
+                    .addCode(generateAllocationCode())
+                    .addStatement(named("$field:N.copyFrom(other.$field:N)"))
+                    .nextControlFlow(named("else if ($field:N != null)"))
+                    .addStatement(named("$field:N.clear()"))
+                    .endControlFlow();
 
+        } else if (info.isRepeated() || info.isLazyString() || info.isByteSlice()) {
+            method.addStatement(named("$field:N.copyFrom(other.$field:N)"));
+
+        } else if (info.isPrimitive() || info.isEnum() || info.isString()) {
+            method.addStatement(named("$field:N = other.$field:N"));
+
+        } else {
+            throw new IllegalStateException("unhandled field: " + info.getDescriptor());
+        }
+    }
+
+    /**
+     * Merges the value of a field that is set in {@code other} using the same
+     * rules as parsing, i.e., singular values get overwritten, nested messages
+     * get merged, and repeated values get appended.
+     */
+    protected void generateMergeFromMessageCode(MethodSpec.Builder method) {
+        method.addCode(clearOtherOneOfs);
+        if (info.isRepeated() && storeType instanceof ArrayTypeName) {
+            method.beginControlFlow(named("if ($field:N == null || $field:N.length == 0)"))
+                    .addStatement(named("$field:N = other.$field:N.clone()"))
+                    .nextControlFlow(named("else"))
+                    .addStatement(named("final int length = $field:N.length"))
+                    .addStatement(named("$field:N = $arrays:T.copyOf($field:N, length + other.$field:N.length)"))
+                    .addStatement(named("System.arraycopy(other.$field:N, 0, $field:N, length, other.$field:N.length)"))
+                    .endControlFlow();
+
+        } else if (storeType instanceof ArrayTypeName) {
+            method.beginControlFlow(named("if ($field:N == null || $field:N.length != other.$field:N.length)"))
+                    .addStatement(named("$field:N = new $componentType:T[other.$field:N.length]"))
                     .endControlFlow()
+                    .addStatement(named("System.arraycopy(other.$field:N, 0, $field:N, 0, other.$field:N.length)"));
+
+        } else if (info.isRepeated()) {
+            method.addCode(generateAllocationCode())
+                    .addStatement(named("$field:N.addAll(other.$field:N)"));
+
+        } else if (info.isMessageOrGroup()) {
+            method.addCode(generateAllocationCode())
+                    .addStatement(named("$field:N.mergeFrom(other.$field:N)"));
+
+        } else if (info.isLazyString() || info.isByteSlice()) {
+            method.addStatement(named("$field:N.copyFrom(other.$field:N)"));
+
+        } else if (info.isPrimitive() || info.isEnum() || info.isString()) {
+            method.addStatement(named("$field:N = other.$field:N"));
 
-                    .addStatement("input.popLimit(limit)")
-                    .addStatement(named("$setHas:L"));
         } else {
-            // Only primitives and enums can be packed
             throw new IllegalStateException("unhandled field: " + info.getDescriptor());
         }
+        method.addStatement(named("$setHas:L"));
     }
 
     protected void generateMemberMethods(TypeSpec.Builder type) {
         generateHasMethod(type);
+        generateClearMethod(type);
         generateGetMethods(type);
+        if (info.isLazilyAllocated()) {
+            generateMutableGetMethod(type);
+        }
         if (info.isEnum()) {
             generateExtraEnumAccessors(type);
         }
@@ -326,6 +499,17 @@ public class FieldGenerator {
                 .build());
     }
 
+    protected void generateClearMethod(TypeSpec.Builder type) {
+        MethodSpec.Builder clear = MethodSpec.methodBuilder(info.getClearName())
+                .addAnnotations(info.getMethodAnnotations())
+                .addModifiers(Modifier.PUBLIC)
+                .returns(info.getParentType())
+                .addStatement("checkMutable()")
+                .addStatement(named("$clearHas:L"));
+        generateClearCode(clear);
+        type.addMethod(clear.addStatement("return this").build());
+    }
+
     /**
      * Enums are odd because they need to be converter back and forth and they
      * don't have the same type as the internal/repeated store. The normal
@@ -373,8 +557,35 @@ public class FieldGenerator {
                 .addModifiers(Modifier.PUBLIC)
                 .addCode(enforceHasCheck);
 
-        if (info.isRepeated()) {
+        if (info.isRepeated() && info.isLazilyAllocated()) {
+            getter.returns(storeType)
+                    .addJavadoc(named("" +
+                            "Returns a shared immutable empty instance if the field has not been allocated.\n" +
+                            "Use {@link #$mutableGetMethod:N()} for modifications.\n"))
+                    .addStatement(named("return $field:N != null ? $field:N : $defaultField:N"));
+        } else if (info.isRepeated()) {
             getter.returns(storeType).addStatement(named("return $field:N"));
+        } else if (info.isLazyString()) {
+            getter.returns(typeName).addStatement(named("return $field:N.toString()"));
+            generateUtf8GetMethod(type);
+        } else if (info.isLazyMessage()) {
+            getter.returns(typeName)
+                    .addJavadoc(named("" +
+                            "Parses the recorded bytes on first access. Returns the shared default\n" +
+                            "instance if the field has not been allocated.\n"))
+                    .addStatement(named("return $field:N != null ? $field:N.get() : $type:T.getDefaultInstance()"));
+        } else if (info.isMessageOrGroup()) {
+            getter.returns(typeName)
+                    .addJavadoc(named("" +
+                            "Returns the shared immutable default instance if the field has not been allocated.\n" +
+                            "Use {@link #$mutableGetMethod:N()} for modifications.\n"))
+                    .addStatement(named("return $field:N != null ? $field:N : $type:T.getDefaultInstance()"));
+        } else if (info.isByteSlice()) {
+            getter.returns(storeType)
+                    .addJavadoc(named("" +
+                            "The result may be a view into the input buffer and is only valid until the\n" +
+                            "buffer gets modified. Use {@link $storeType:T#copy()} to retain the data.\n"))
+                    .addStatement(named("return $field:N"));
         } else if (info.isString()) {
             getter.returns(typeName).addStatement(named("return $field:N"));
         } else if (info.isEnum()) {
@@ -390,6 +601,66 @@ public class FieldGenerator {
         type.addMethod(getter.build());
     }
 
+    /**
+     * Returns the internal store and allocates it if necessary. The store
+     * is expected to get modified, so the field gets marked as present.
+     */
+    protected void generateMutableGetMethod(TypeSpec.Builder type) {
+        type.addMethod(MethodSpec.methodBuilder(info.getMutableGetterName())
+                .addAnnotations(info.getMethodAnnotations())
+                .addJavadoc(named("" +
+                        "Gets the internal store for modifications and marks the field as present.\n" +
+                        "The store gets allocated on first access.\n"))
+                .addModifiers(Modifier.PUBLIC)
+                .returns(storeType)
+                .addStatement("checkMutable()")
+                .addCode(generateAllocationCode())
+                .addStatement(named("$setHas:L"))
+                .addStatement(named("return $field:N"))
+                .build());
+    }
+
+    private CodeBlock generateAllocationCode() {
+        if (!info.isLazilyAllocated())
+            return EMPTY_BLOCK;
+
+        return CodeBlock.builder()
+                .beginControlFlow("if ($N == null)", info.getFieldName())
+                .addStatement(named("$field:N = $initializer:L"))
+                .endControlFlow()
+                .build();
+    }
+
+    /**
+     * Lazy strings provide access to the raw bytes so that users can avoid
+     * decoding, e.g., for comparisons or forwarding.
+     */
+    protected void generateUtf8GetMethod(TypeSpec.Builder type) {
+        type.addMethod(MethodSpec.methodBuilder(info.getGetterName() + "Utf8")
+                .addAnnotations(info.getMethodAnnotations())
+                .addJavadoc(named("" +
+                        "Gets the encoded bytes without decoding them. The result may be a view\n" +
+                        "into the input buffer and is only valid until the buffer gets modified.\n"))
+                .addModifiers(Modifier.PUBLIC)
+                .returns(storeType)
+                .addCode(enforceHasCheck)
+                .addStatement(named("return $field:N"))
+                .build());
+    }
+
+    private CodeBlock generateInitializer() {
+        if (info.isRepeated() && info.isLazyMessage()) {
+            return CodeBlock.of("$T.newEmptyInstance($T.getFactory())", com.diffbot.primibuf.RuntimeClasses.RepeatedLazyMessage, info.getTypeName());
+        } else if (info.isRepeated() && info.isMessageOrGroup()) {
+            return CodeBlock.of("$T.newEmptyInstance($T.getFactory())", com.diffbot.primibuf.RuntimeClasses.RepeatedMessage, info.getTypeName());
+        } else if (info.isLazyMessage()) {
+            return CodeBlock.of("$T.newInstance($T.getFactory())", com.diffbot.primibuf.RuntimeClasses.LazyMessage, info.getTypeName());
+        } else if (info.isMessageOrGroup()) {
+            return CodeBlock.of("$T.newInstance()", info.getTypeName());
+        }
+        return null;
+    }
+
     private CodeBlock generateClearOtherOneOfs() {
         if (!info.hasOtherOneOfFields())
             return EMPTY_BLOCK;
@@ -430,6 +701,7 @@ public class FieldGenerator {
         m.put("primitiveType", info.isPrimitive() ? info.getPrimitiveType() : null);
         m.put("commentLine", info.getJavadoc());
         m.put("getMethod", info.getGetterName());
+        m.put("mutableGetMethod", info.getMutableGetterName());
         m.put("addMethod", info.getAdderName());
         m.put("hasMethod", info.getHazzerName());
         m.put("getHas", info.getHasBit());
@@ -440,13 +712,28 @@ public class FieldGenerator {
         m.put("number", info.getNumber());
         m.put("tag", info.getTag());
         m.put("capitalizedType", com.diffbot.primibuf.FieldUtil.getCapitalizedType(info.getDescriptor().getType()));
-        m.put("secondArgs", info.isGroup() ? ", " + info.getNumber() : "");
+        m.put("readString", info.isInternedString() ? "readInternedString" : "readString");
+        if (info.isGroup()) {
+            m.put("secondArgs", ", " + info.getNumber());
+        } else if (info.isMessage() && info.isMaskable() && !info.isLazyMessage()) {
+            m.put("secondArgs", ", mask == null ? null : mask.getChild(" + info.getNumber() + ")");
+        } else {
+            m.put("secondArgs", "");
+        }
+        if (storeType instanceof ArrayTypeName) m.put("componentType", ((ArrayTypeName) storeType).componentType);
+        m.put("arrays", Arrays.class);
+        m.put("groupArgs", info.isGroup() ? ", " + info.getNumber() : "");
         m.put("defaultField", info.getDefaultFieldName());
+        m.put("initializer", generateInitializer());
         m.put("bytesPerTag", info.getBytesPerTag());
         m.put("valueOrNumber", info.isEnum() ? "value.getNumber()" : "value");
         m.put("optional", info.getOptionalClass());
         if (info.isPackable()) m.put("packedTag", info.getPackedTag());
         if (info.isFixedWidth()) m.put("fixedWidth", info.getFixedWidth());
+        if (info.isRepeated() && (info.isString() || (info.isPrimitive() && !info.isPrimitiveStore())))
+            m.put("arrayArgs", info.getFieldName() + ", " + info.getFieldName() + ".length");
+        else if (info.isRepeated())
+            m.put("arrayArgs", info.getFieldName() + ".array(), " + info.getFieldName() + ".length()");
         if (info.isRepeated())
             m.put("getRepeatedIndex_i", info.isPrimitive() || info.isEnum() ? "array()[i]" : "get(i)");
 
@@ -31,6 +31,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * @author Florian Enner
@@ -82,6 +83,22 @@ class MessageGenerator {
                 .addStatement("super()")
                 .build());
 
+        // Shared instance for absent message fields
+        type.addField(FieldSpec.builder(info.getTypeName(), "DEFAULT_INSTANCE")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer("new $T().makeImmutable()", info.getTypeName())
+                .build());
+        generateImmutableStores(type);
+        type.addMethod(MethodSpec.methodBuilder("getDefaultInstance")
+                .addJavadoc("" +
+                        "Returns a shared instance without any fields set. It gets returned by the getters of\n" +
+                        "absent message fields and is immutable, i.e., modifications throw an\n" +
+                        "{@link UnsupportedOperationException}.\n")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .returns(info.getTypeName())
+                .addStatement("return DEFAULT_INSTANCE")
+                .build());
+
         // Member state (the first bitfield is in the parent class)
         for (int i = 1; i < numBitFields; i++) {
             type.addField(FieldSpec.builder(int.class, com.diffbot.primibuf.BitField.fieldName(i), Modifier.PRIVATE).build());
@@ -96,12 +113,25 @@ class MessageGenerator {
         // Fields accessors
         fields.forEach(f -> f.generateMemberMethods(type));
         generateGetByFieldName(type);
+        generateClear(type);
         generateEquals(type);
-        generateMergeFrom(type);
+        generateHashCode(type);
+        if (info.isTableDriven()) {
+            generateFieldTable(type);
+        } else {
+            generateMergeFrom(type);
+        }
+        generateMergeFromMessage(type);
+        generateCopyFrom(type);
+        generateWriteTo(type);
+        generateComputeSerializedSize(type);
 
         // Static utilities
         generateParseFrom(type);
         generateMessageFactory(type);
+        if (info.isGenerateFieldMasks()) {
+            generateFieldMaskResolver(type);
+        }
         type.addField(FieldSpec.builder(TypeName.LONG, "serialVersionUID")
                 .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
                 .initializer("0L")
@@ -130,6 +160,41 @@ class MessageGenerator {
         type.addMethod(getFieldByName.build());
     }
 
+    /**
+     * Stores that get allocated eagerly are reachable through the getters of the
+     * default instance, so they need to reject modifications as well.
+     */
+    private void generateImmutableStores(TypeSpec.Builder type) {
+        final CodeBlock.Builder block = CodeBlock.builder();
+        for (FieldGenerator field : fields) {
+            final RequestInfo.FieldInfo fieldInfo = field.getInfo();
+            if (fieldInfo.isRepeated() && !fieldInfo.isLazilyAllocated() && !(fieldInfo.getStoreType() instanceof ArrayTypeName)) {
+                block.addStatement("DEFAULT_INSTANCE.$N.makeImmutable()", fieldInfo.getFieldName());
+            }
+        }
+        if (!block.isEmpty()) {
+            type.addStaticBlock(block.build());
+        }
+    }
+
+    private void generateClear(TypeSpec.Builder type) {
+        MethodSpec.Builder clear = MethodSpec.methodBuilder("clear")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(info.getTypeName())
+                .addStatement("checkMutable()");
+
+        for (int i = 0; i < numBitFields; i++) {
+            clear.addStatement("$L = 0", com.diffbot.primibuf.BitField.fieldName(i));
+        }
+        clear.addStatement("cachedSize = -1");
+        clear.addStatement("frozen = false");
+        fields.forEach(f -> f.generateClearCode(clear));
+        clear.addStatement("return this");
+
+        type.addMethod(clear.build());
+    }
+
     private void generateEquals(TypeSpec.Builder type) {
         MethodSpec.Builder equals = MethodSpec.methodBuilder("equals")
                 .addAnnotation(Override.class)
@@ -169,6 +234,102 @@ class MessageGenerator {
         type.addMethod(equals.build());
     }
 
+    private void generateCopyFrom(TypeSpec.Builder type) {
+        MethodSpec.Builder copyFrom = MethodSpec.methodBuilder("copyFrom")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(info.getTypeName())
+                .addParameter(info.getTypeName(), "other", Modifier.FINAL);
+
+        copyFrom.addStatement("checkMutable()");
+        copyFrom.beginControlFlow("if (other == this)")
+                .addStatement("return this")
+                .endControlFlow();
+        copyFrom.addStatement("cachedSize = other.cachedSize");
+        for (int i = 0; i < numBitFields; i++) {
+            copyFrom.addStatement("$1L = other.$1L", com.diffbot.primibuf.BitField.fieldName(i));
+        }
+        fields.forEach(f -> f.generateCopyFromCode(copyFrom));
+        copyFrom.addStatement("return this");
+
+        type.addMethod(copyFrom.build());
+    }
+
+    private void generateMergeFromMessage(TypeSpec.Builder type) {
+        MethodSpec.Builder mergeFrom = MethodSpec.methodBuilder("mergeFrom")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(info.getTypeName())
+                .addParameter(info.getTypeName(), "other", Modifier.FINAL);
+
+        mergeFrom.addStatement("checkMutable()");
+        mergeFrom.addStatement("cachedSize = -1");
+        for (FieldGenerator field : fields) {
+            mergeFrom.beginControlFlow("if (other.$N())", field.getInfo().getHazzerName());
+            field.generateMergeFromMessageCode(mergeFrom);
+            mergeFrom.endControlFlow();
+        }
+        mergeFrom.addStatement("return this");
+
+        type.addMethod(mergeFrom.build());
+    }
+
+    private void generateWriteTo(TypeSpec.Builder type) {
+        MethodSpec.Builder writeTo = MethodSpec.methodBuilder("writeTo")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .addParameter(com.diffbot.primibuf.RuntimeClasses.ProtoSink, "output", Modifier.FINAL)
+                .addException(IOException.class);
+
+        // Fields get written in ascending field number order to match the output of protobuf-java
+        final List<FieldGenerator> sortedFields = new ArrayList<>(fields);
+        sortedFields.sort(com.diffbot.primibuf.FieldUtil.AscendingNumberSorter);
+        sortedFields.forEach(f -> f.generateSerializationCode(writeTo));
+
+        type.addMethod(writeTo.build());
+    }
+
+    private void generateComputeSerializedSize(TypeSpec.Builder type) {
+        MethodSpec.Builder computeSerializedSize = MethodSpec.methodBuilder("computeSerializedSize")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PROTECTED)
+                .returns(int.class);
+
+        computeSerializedSize.addStatement("int size = 0");
+        fields.forEach(f -> f.generateComputeSerializedSizeCode(computeSerializedSize));
+        computeSerializedSize.addStatement("return size");
+
+        type.addMethod(computeSerializedSize.build());
+    }
+
+    private void generateHashCode(TypeSpec.Builder type) {
+        MethodSpec.Builder hashCode = MethodSpec.methodBuilder("computeHashCode")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PROTECTED)
+                .returns(int.class);
+
+        // Include the has state and the contents of all fields that are set, i.e.,
+        // the same properties that get compared by equals()
+        if (info.getFieldCount() > 0) {
+            hashCode.addStatement("int result = $L", com.diffbot.primibuf.BitField.fieldName(0));
+            for (int i = 1; i < numBitFields; i++) {
+                hashCode.addStatement("result = 31 * result + $L", com.diffbot.primibuf.BitField.fieldName(i));
+            }
+
+            for (FieldGenerator field : fields) {
+                hashCode.addCode("result = 31 * result + ($N() ? ", field.getInfo().getHazzerName());
+                field.generateHashCodeStatement(hashCode);
+                hashCode.addCode(" : 0);\n");
+            }
+
+            hashCode.addStatement("return result");
+        } else {
+            hashCode.addStatement("return 0");
+        }
+
+        type.addMethod(hashCode.build());
+    }
+
     private void generateMergeFrom(TypeSpec.Builder type) {
         MethodSpec.Builder mergeFrom = MethodSpec.methodBuilder("mergeFrom")
                 .addAnnotation(Override.class)
@@ -187,18 +348,18 @@ class MessageGenerator {
         // backwards compatibility. However, any production proto file should already be using the packed
         // option whenever possible, so we don't need to optimize the non-packed case.
         final boolean enableFallthroughOptimization = info.getExpectedIncomingOrder() != ExpectedIncomingOrder.None;
-        final List<FieldGenerator> sortedFields = new ArrayList<>(fields);
-        switch (info.getExpectedIncomingOrder()) {
-            case AscendingNumber:
-                sortedFields.sort(com.diffbot.primibuf.FieldUtil.AscendingNumberSorter);
-                break;
-            case Quickbuf: // keep existing order
-            case None: // no optimization
-                break;
-        }
+        final List<FieldGenerator> sortedFields = getFieldsInExpectedOrder();
 
         m.put("readTag", "readTag");
 
+        mergeFrom.addStatement("checkMutable()");
+
+        // Projection: skip all fields that are not selected by the mask of the source
+        final boolean hasMaskableFields = fields.stream().anyMatch(field -> field.getInfo().isMaskable());
+        if (hasMaskableFields) {
+            mergeFrom.addStatement("final $T mask = input.getFieldMask()", RuntimeClasses.FieldMask);
+        }
+
         if (enableFallthroughOptimization) {
             mergeFrom.addComment("Enabled Fall-Through Optimization (" + info.getExpectedIncomingOrder() + ")");
             mergeFrom.addStatement(named("int tag = input.$readTag:N()"));
@@ -216,10 +377,10 @@ class MessageGenerator {
             // Assume all packable fields are written packed. Add non-packed cases to the end.
             if (field.getInfo().isPackable()) {
                 mergeFrom.beginControlFlow("case $L:", field.getInfo().getPackedTag());
-                field.generateMergingCodeFromPacked(mergeFrom);
+                generateMaskCheck(mergeFrom, field, field::generateMergingCodeFromPacked);
             } else {
                 mergeFrom.beginControlFlow("case $L:", field.getInfo().getTag());
-                field.generateMergingCode(mergeFrom);
+                generateMaskCheck(mergeFrom, field, field::generateMergingCode);
             }
 
             if (enableFallthroughOptimization) {
@@ -256,7 +417,7 @@ class MessageGenerator {
         for (FieldGenerator field : sortedFields) {
             if (field.getInfo().isPackable()) {
                 mergeFrom.beginControlFlow("case $L:", field.getInfo().getTag());
-                field.generateMergingCode(mergeFrom);
+                generateMaskCheck(mergeFrom, field, field::generateMergingCode);
                 if (enableFallthroughOptimization) {
                     mergeFrom.addStatement(named("tag = input.$readTag:N()"));
                 }
@@ -269,6 +430,119 @@ class MessageGenerator {
         type.addMethod(mergeFrom.build());
     }
 
+    /**
+     * Table-driven mode: the fields get described by a static FieldTable that gets
+     * interpreted by a shared loop in the runtime, so the size of mergeFrom does not
+     * grow with the number of fields. Fields that need more than storing a value get
+     * merged by the regular merging code in mergeCustomField.
+     */
+    private void generateFieldTable(TypeSpec.Builder type) {
+        // Entries mirror the cases of the switch in generateMergeFrom, i.e., the loop
+        // expects the fields in the same order and non-packed cases come last
+        final List<FieldGenerator> sortedFields = getFieldsInExpectedOrder();
+        final List<FieldGenerator> customFields = new ArrayList<>();
+        final CodeBlock.Builder table = CodeBlock.builder()
+                .add("$T.newBuilder($T.class)$>$>", RuntimeClasses.FieldTable, info.getTypeName());
+        for (FieldGenerator field : sortedFields) {
+            final boolean packable = field.getInfo().isPackable();
+            addFieldTableEntry(table, field, packable ? field.getInfo().getPackedTag() : field.getInfo().getTag(), packable);
+        }
+        for (FieldGenerator field : sortedFields) {
+            if (field.getInfo().isPackable()) {
+                addFieldTableEntry(table, field, field.getInfo().getTag(), false);
+            }
+            if ("CUSTOM".equals(field.getTableKind(false))) {
+                customFields.add(field);
+            }
+        }
+        table.add("\n.build()$<$<");
+
+        type.addField(FieldSpec.builder(RuntimeClasses.FieldTable, "FIELD_TABLE")
+                .addModifiers(Modifier.PRIVATE, Modifier.STATIC, Modifier.FINAL)
+                .initializer(table.build())
+                .build());
+
+        type.addMethod(MethodSpec.methodBuilder("mergeFrom")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(info.getTypeName())
+                .addParameter(RuntimeClasses.ProtoSource, "input", Modifier.FINAL)
+                .addException(IOException.class)
+                .addStatement("checkMutable()")
+                .addStatement("FIELD_TABLE.mergeFrom(this, input)")
+                .addStatement("return this")
+                .build());
+
+        if (customFields.isEmpty()) {
+            return;
+        }
+
+        // The mask check happens in the shared loop, but nested messages need the mask for their children
+        MethodSpec.Builder mergeCustomField = MethodSpec.methodBuilder("mergeCustomField")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PROTECTED)
+                .addParameter(int.class, "tag", Modifier.FINAL)
+                .addParameter(RuntimeClasses.ProtoSource, "input", Modifier.FINAL)
+                .addException(IOException.class);
+        if (customFields.stream().anyMatch(field -> field.getInfo().isMaskable())) {
+            mergeCustomField.addStatement("final $T mask = input.getFieldMask()", RuntimeClasses.FieldMask);
+        }
+
+        mergeCustomField.beginControlFlow("switch (tag)");
+        for (FieldGenerator field : customFields) {
+            if (field.getInfo().isPackable()) {
+                mergeCustomField.beginControlFlow("case $L:", field.getInfo().getPackedTag());
+                field.generateMergingCodeFromPacked(mergeCustomField);
+                mergeCustomField.addStatement("break").endControlFlow();
+            }
+            mergeCustomField.beginControlFlow("case $L:", field.getInfo().getTag());
+            field.generateMergingCode(mergeCustomField);
+            mergeCustomField.addStatement("break").endControlFlow();
+        }
+        mergeCustomField.beginControlFlow("default:")
+                .addStatement("super.mergeCustomField(tag, input)")
+                .endControlFlow();
+        mergeCustomField.endControlFlow();
+        type.addMethod(mergeCustomField.build());
+    }
+
+    private void addFieldTableEntry(CodeBlock.Builder table, FieldGenerator field, int tag, boolean packed) {
+        final String kind = field.getTableKind(packed);
+        table.add("\n.add($L, $T.$L", tag, RuntimeClasses.FieldTable, kind);
+        if (field.getInfo().isMaskable()) {
+            table.add(" | $T.MASKABLE", RuntimeClasses.FieldTable);
+        }
+        if (!"CUSTOM".equals(kind)) {
+            table.add(", $S, $L", field.getInfo().getFieldName(), field.getInfo().getBitIndex());
+        }
+        table.add(")");
+    }
+
+    private List<FieldGenerator> getFieldsInExpectedOrder() {
+        final List<FieldGenerator> sortedFields = new ArrayList<>(fields);
+        switch (info.getExpectedIncomingOrder()) {
+            case AscendingNumber:
+                sortedFields.sort(com.diffbot.primibuf.FieldUtil.AscendingNumberSorter);
+                break;
+            case Quickbuf: // keep existing order
+            case None: // no optimization
+                break;
+        }
+        return sortedFields;
+    }
+
+    private void generateMaskCheck(MethodSpec.Builder mergeFrom, FieldGenerator field, Consumer<MethodSpec.Builder> mergingCode) {
+        if (!field.getInfo().isMaskable()) {
+            mergingCode.accept(mergeFrom);
+            return;
+        }
+        mergeFrom.beginControlFlow("if (mask == null || mask.contains($L))", field.getInfo().getNumber());
+        mergingCode.accept(mergeFrom);
+        mergeFrom.nextControlFlow("else")
+                .addStatement("input.skipField(tag)")
+                .endControlFlow();
+    }
+
     private int getPackedTagOrTag(FieldGenerator field) {
         if (field.getInfo().isPackable())
             return field.getInfo().getPackedTag();
@@ -283,6 +557,15 @@ class MessageGenerator {
                 .returns(info.getTypeName())
                 .addStatement("return $T.mergeFrom(new $T(), data)", com.diffbot.primibuf.RuntimeClasses.AbstractMessage, info.getTypeName())
                 .build());
+
+        // Lets hot loops reuse a caller-owned source, see ProtoSource::setInput
+        type.addMethod(MethodSpec.methodBuilder("parseFrom")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .addException(IOException.class)
+                .addParameter(com.diffbot.primibuf.RuntimeClasses.ProtoSource, "input", Modifier.FINAL)
+                .returns(info.getTypeName())
+                .addStatement("return $T.mergeFrom(new $T(), input)", com.diffbot.primibuf.RuntimeClasses.AbstractMessage, info.getTypeName())
+                .build());
     }
 
     private void generateMessageFactory(TypeSpec.Builder type) {
@@ -313,6 +596,67 @@ class MessageGenerator {
 
     }
 
+    private void generateFieldMaskResolver(TypeSpec.Builder type) {
+        ClassName resolverTypeName = info.getTypeName().nestedClass(info.getTypeName().simpleName() + "FieldMaskResolver");
+
+        MethodSpec.Builder getFieldNumber = MethodSpec.methodBuilder("getFieldNumber")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(int.class)
+                .addParameter(String.class, "fieldName")
+                .beginControlFlow("switch (fieldName)");
+        for (FieldGenerator field : fields) {
+            getFieldNumber
+                    .addCode("case $S: ", field.getInfo().getDescriptor().getName())
+                    .addStatement("return $L", field.getInfo().getNumber());
+        }
+        getFieldNumber
+                .addCode("default: ")
+                .addStatement("return -1")
+                .endControlFlow();
+
+        MethodSpec.Builder getChildResolver = MethodSpec.methodBuilder("getChildResolver")
+                .addAnnotation(Override.class)
+                .addModifiers(Modifier.PUBLIC)
+                .returns(RuntimeClasses.FieldMaskResolver)
+                .addParameter(int.class, "fieldNumber")
+                .beginControlFlow("switch (fieldNumber)");
+        for (FieldGenerator field : fields) {
+            if (field.getInfo().isMessageOrGroup()) {
+                getChildResolver
+                        .addCode("case $L: ", field.getInfo().getNumber())
+                        .addStatement("return $T.getFieldMaskResolver()", field.getInfo().getTypeName());
+            }
+        }
+        getChildResolver
+                .addCode("default: ")
+                .addStatement("return null")
+                .endControlFlow();
+
+        type.addType(TypeSpec.enumBuilder(resolverTypeName.simpleName())
+                .addModifiers(Modifier.PRIVATE)
+                .addSuperinterface(RuntimeClasses.FieldMaskResolver)
+                .addEnumConstant("INSTANCE")
+                .addMethod(getFieldNumber.build())
+                .addMethod(getChildResolver.build())
+                .build());
+
+        type.addMethod(MethodSpec.methodBuilder("getFieldMaskResolver")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .returns(RuntimeClasses.FieldMaskResolver)
+                .addStatement("return $T.INSTANCE", resolverTypeName)
+                .build());
+
+        type.addMethod(MethodSpec.methodBuilder("newFieldMask")
+                .addJavadoc("Creates a mask that selects the specified paths of proto field names, e.g., \"name\" or \"child.name\"\n")
+                .addModifiers(Modifier.PUBLIC, Modifier.STATIC)
+                .returns(RuntimeClasses.FieldMask)
+                .addParameter(String[].class, "paths")
+                .varargs(true)
+                .addStatement("return $T.fromPaths($T.INSTANCE, paths)", RuntimeClasses.FieldMask, resolverTypeName)
+                .build());
+    }
+
     MessageGenerator(MessageInfo info) {
         this.info = info;
         info.getFields().forEach(f -> fields.add(new FieldGenerator(f)));
@@ -55,6 +55,7 @@ public class OneOfGenerator {
         MethodSpec.Builder clear = MethodSpec.methodBuilder(info.getClearName())
                 .addModifiers(Modifier.PUBLIC)
                 .returns(info.getParentType())
+                .addStatement("checkMutable()")
                 .beginControlFlow("if ($L())", info.getHazzerName());
 
         for (FieldInfo field : fields) {
@@ -152,6 +152,93 @@ public class RequestInfo {
         return Boolean.parseBoolean(generatorParameters.getOrDefault("java8_optional", "false"));
     }
 
+    public boolean getGenerateFieldMasks() {
+        String value = generatorParameters.get("field_masks");
+        return value != null && !"false".equalsIgnoreCase(value);
+    }
+
+    public boolean isMaskable(FieldInfo field) {
+        return isFieldOptionEnabled("field_masks", field);
+    }
+
+    public boolean isLazyString(FieldInfo field) {
+        return isFieldOptionEnabled("lazy_strings", field);
+    }
+
+    public boolean isInternedString(FieldInfo field) {
+        return isFieldOptionEnabled("intern_strings", field);
+    }
+
+    public boolean isByteSlice(FieldInfo field) {
+        return isFieldOptionEnabled("byte_slices", field);
+    }
+
+    public boolean isLazyMessage(FieldInfo field) {
+        return isFieldOptionEnabled("lazy_messages", field);
+    }
+
+    public boolean isPrimitiveStore(FieldInfo field) {
+        return isFieldOptionEnabled("primitive_stores", field);
+    }
+
+    public boolean isTableDriven(MessageInfo type) {
+        return isTypeOptionEnabled("table_driven", type);
+    }
+
+    /**
+     * Options that can be enabled for all message types, or for a ';' separated list
+     * of files or message types, e.g.,
+     * <p>
+     * option=true
+     * option=entity.proto;.package.Message
+     *
+     * @param option name of the generator parameter
+     * @param type   message type to check
+     * @return true if the option is enabled for the type
+     */
+    boolean isTypeOptionEnabled(String option, MessageInfo type) {
+        String value = generatorParameters.get(option);
+        if (value == null || "false".equalsIgnoreCase(value))
+            return false;
+        if (value.isEmpty() || "true".equalsIgnoreCase(value))
+            return true;
+
+        for (String entry : value.split(";")) {
+            String id = entry.startsWith(".") ? entry : "." + entry;
+            if (entry.equals(type.getParentFile().getFileName()) || id.equals(type.getTypeId()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Options that can be enabled for all fields, or for a ';' separated list of
+     * files, message types, or fields, e.g.,
+     * <p>
+     * option=true
+     * option=entity.proto;.package.Message;.package.Message.field_name
+     *
+     * @param option name of the generator parameter
+     * @param field  field to check
+     * @return true if the option is enabled for the field
+     */
+    boolean isFieldOptionEnabled(String option, FieldInfo field) {
+        String value = generatorParameters.get(option);
+        if (value == null || "false".equalsIgnoreCase(value))
+            return false;
+        if (value.isEmpty() || "true".equalsIgnoreCase(value))
+            return true;
+
+        String typeId = field.getParentTypeInfo().getTypeId();
+        String fieldId = typeId + "." + field.getDescriptor().getName();
+        for (String entry : value.split(";")) {
+            String id = entry.startsWith(".") ? entry : "." + entry;
+            if (entry.equals(field.getParentFile().getFileName()) || id.equals(typeId) || id.equals(fieldId))
+                return true;
+        }
+        return false;
+    }
+
     private final Map<String, String> generatorParameters;
     private final List<FileInfo> files;
     private final TypeRegistry typeRegistry = TypeRegistry.empty();
@@ -238,6 +325,8 @@ public class RequestInfo {
             this.fieldCount = descriptor.getFieldCount();
             this.expectedIncomingOrder = getParentFile().getParentRequest().getExpectedIncomingOrder();
             this.enforceHasChecks = getParentFile().getParentRequest().getEnforceHasChecks();
+            this.generateFieldMasks = getParentFile().getParentRequest().getGenerateFieldMasks();
+            this.tableDriven = getParentFile().getParentRequest().isTableDriven(this);
 
             // Sort fields by serialization order such that they are accessed in a
             // sequential access pattern.
@@ -288,6 +377,8 @@ public class RequestInfo {
         private final ExpectedIncomingOrder expectedIncomingOrder;
         private final int numBitFields;
         private final boolean enforceHasChecks;
+        private final boolean generateFieldMasks;
+        private final boolean tableDriven;
 
     }
 
@@ -317,6 +408,7 @@ public class RequestInfo {
             setterName = "set" + upperName;
             getterName = "get" + upperName;
             tryGetName = "tryGet" + upperName;
+            mutableGetterName = "getMutable" + upperName;
             adderName = "add" + upperName;
             clearName = "clear" + upperName;
             isPrimitive = com.diffbot.primibuf.FieldUtil.isPrimitive(descriptor.getType());
@@ -334,10 +426,14 @@ public class RequestInfo {
         }
 
         public TypeName getRepeatedStoreType() {
-            if (isGroup() || isMessage()) {
+            if (isLazyMessage()) {
+                return ParameterizedTypeName.get(RuntimeClasses.RepeatedLazyMessage, getTypeName());
+            } else if (isGroup() || isMessage()) {
                 return ParameterizedTypeName.get(repeatedStoreType, getTypeName());
             } else if (isEnum()) {
                 return ParameterizedTypeName.get(repeatedStoreType, getTypeName());
+            } else if (isPrimitiveStore()) {
+                return RuntimeClasses.getPrimitiveStoreClass(descriptor.getType());
             } else if (isPrimitive()) {
                 // primitive types
                 return RuntimeClasses.getPrimitiveRepeatedStoreType(descriptor.getType());
@@ -348,6 +444,58 @@ public class RequestInfo {
             return repeatedStoreType;
         }
 
+        /**
+         * Singular string fields that store the raw bytes and get decoded on first access
+         */
+        public boolean isLazyString() {
+            return isString() && !isRepeated() && getParentFile().getParentRequest().isLazyString(this);
+        }
+
+        /**
+         * String fields that get deduplicated through the StringInterner of the source
+         */
+        public boolean isInternedString() {
+            return isString() && !isLazyString() && getParentFile().getParentRequest().isInternedString(this);
+        }
+
+        /**
+         * Singular bytes fields that reference a range of the input buffer rather than a copy
+         */
+        public boolean isByteSlice() {
+            return isBytes() && !isRepeated() && getParentFile().getParentRequest().isByteSlice(this);
+        }
+
+        /**
+         * Message fields that record the encoded bytes and get parsed on first access. Groups
+         * are not length delimited, so they always get parsed eagerly.
+         */
+        public boolean isLazyMessage() {
+            return isMessage() && getParentFile().getParentRequest().isLazyMessage(this);
+        }
+
+        /**
+         * Repeated primitive fields that are stored in length-tracked stores such as RepeatedInt
+         * rather than in bare arrays, so that merging appends and reused messages keep their capacity.
+         */
+        public boolean isPrimitiveStore() {
+            return isPrimitive() && !isBytes() && isRepeated() && getParentFile().getParentRequest().isPrimitiveStore(this);
+        }
+
+        /**
+         * Message fields that start out as null and get allocated on first modification, so
+         * that constructing a message does not allocate the entire schema tree
+         */
+        public boolean isLazilyAllocated() {
+            return isMessageOrGroup();
+        }
+
+        /**
+         * Fields that only get decoded if they are selected by the FieldMask of the source
+         */
+        public boolean isMaskable() {
+            return getParentFile().getParentRequest().isMaskable(this);
+        }
+
         public String getJavadoc() {
             return com.diffbot.primibuf.FieldUtil.getProtoDefinitionLine(descriptor) + "\n";
         }
@@ -411,8 +559,16 @@ public class RequestInfo {
             return descriptor.getLabel() == FieldDescriptorProto.Label.LABEL_REPEATED;
         }
 
+        /**
+         * Whether the field gets serialized in packed format. Packable fields in
+         * proto3 files are packed unless they explicitly opt out.
+         */
         public boolean isPacked() {
-            return isPackable() && descriptor.getOptions().hasPacked() && descriptor.getOptions().getPacked();
+            if (!isPackable())
+                return false;
+            if (descriptor.getOptions().hasPacked())
+                return descriptor.getOptions().getPacked();
+            return "proto3".equals(getParentFile().getDescriptor().getSyntax());
         }
 
         public boolean isPackable() {
@@ -446,6 +602,12 @@ public class RequestInfo {
         public TypeName getStoreType() {
             if (isRepeated())
                 return getRepeatedStoreType();
+            if (isLazyString())
+                return RuntimeClasses.Utf8String;
+            if (isByteSlice())
+                return RuntimeClasses.ByteSlice;
+            if (isLazyMessage())
+                return ParameterizedTypeName.get(RuntimeClasses.LazyMessage, getTypeName());
             if (isString())
                 return TypeName.get(String.class);
             if (isEnum())
@@ -462,6 +624,9 @@ public class RequestInfo {
             if (isRepeated()) {
                 return ParameterizedTypeName.get(ClassName.get(Optional.class), getRepeatedStoreType());
             }
+            if (isByteSlice()) {
+                return ParameterizedTypeName.get(ClassName.get(Optional.class), getStoreType());
+            }
             final TypeName typeName = getTypeName();
             if (typeName.equals(ArrayTypeName.of(TypeName.BYTE))) {
                 // NOTE: byte[] is not considered as a repeated field
@@ -531,6 +696,7 @@ public class RequestInfo {
         String setterName;
         String getterName;
         String tryGetName;
+        String mutableGetterName;
         String adderName;
         String clearName;
         String defaultValue;
@@ -43,13 +43,25 @@ class RuntimeClasses {
     static final ClassName AbstractMessage = ClassName.get(API_PACKAGE, "ProtoMessage");
     static final ClassName MessageFactory = ClassName.get(API_PACKAGE, "MessageFactory");
     static final ClassName BytesType = ClassName.get(API_PACKAGE, "RepeatedByte");
+    static final ClassName Utf8String = ClassName.get(API_PACKAGE, "Utf8String");
+    static final ClassName ByteSlice = ClassName.get(API_PACKAGE, "ByteSlice");
     static final ClassName InvalidProtocolBufferException = ClassName.get(API_PACKAGE, "InvalidProtocolBufferException");
+    static final ClassName FieldMask = ClassName.get(API_PACKAGE, "FieldMask");
+    static final ClassName FieldMaskResolver = FieldMask.nestedClass("Resolver");
+    static final ClassName FieldTable = ClassName.get(API_PACKAGE, "FieldTable");
     static final ClassName ProtoEnum = ClassName.get(API_PACKAGE, "ProtoEnum");
     static final ClassName EnumConverter = ProtoEnum.nestedClass("EnumConverter");
 
     private static final ClassName RepeatedString = ClassName.get(API_PACKAGE, "RepeatedString");
     static final ClassName RepeatedMessage = ClassName.get(API_PACKAGE, "RepeatedMessage");
+    static final ClassName LazyMessage = ClassName.get(API_PACKAGE, "LazyMessage");
+    static final ClassName RepeatedLazyMessage = ClassName.get(API_PACKAGE, "RepeatedLazyMessage");
     static final ClassName RepeatedEnum = ClassName.get(API_PACKAGE, "RepeatedEnum");
+    private static final ClassName RepeatedDouble = ClassName.get(API_PACKAGE, "RepeatedDouble");
+    private static final ClassName RepeatedFloat = ClassName.get(API_PACKAGE, "RepeatedFloat");
+    private static final ClassName RepeatedLong = ClassName.get(API_PACKAGE, "RepeatedLong");
+    private static final ClassName RepeatedInt = ClassName.get(API_PACKAGE, "RepeatedInt");
+    private static final ClassName RepeatedBoolean = ClassName.get(API_PACKAGE, "RepeatedBoolean");
 
     static ClassName getRepeatedStoreType(FieldDescriptorProto.Type type) {
         switch (type) {
@@ -101,6 +113,36 @@ class RuntimeClasses {
         }
     }
 
+    static ClassName getPrimitiveStoreClass(FieldDescriptorProto.Type type) {
+        switch (type) {
+            case TYPE_DOUBLE:
+                return RepeatedDouble;
+
+            case TYPE_FLOAT:
+                return RepeatedFloat;
+
+            case TYPE_SFIXED64:
+            case TYPE_FIXED64:
+            case TYPE_SINT64:
+            case TYPE_INT64:
+            case TYPE_UINT64:
+                return RepeatedLong;
+
+            case TYPE_SFIXED32:
+            case TYPE_FIXED32:
+            case TYPE_SINT32:
+            case TYPE_INT32:
+            case TYPE_UINT32:
+                return RepeatedInt;
+
+            case TYPE_BOOL:
+                return RepeatedBoolean;
+
+            default:
+                throw new IllegalStateException("Unexpected value: " + type);
+        }
+    }
+
     static TypeName getPrimitiveRepeatedStoreType(FieldDescriptorProto.Type type) {
         TypeName primitiveType = getPrimitiveStoreType(type);
         return ArrayTypeName.of(primitiveType);
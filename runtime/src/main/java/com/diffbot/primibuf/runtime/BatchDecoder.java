@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package com.diffbot.primibuf.runtime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static com.diffbot.primibuf.runtime.InvalidProtocolBufferException.*;
+
+/**
+ * Decodes large batches of serialized messages in parallel. The input gets split
+ * into chunks of consecutive records that are decoded by an executor, and every
+ * chunk uses a single reusable {@link ProtoSource}. The results are returned in
+ * the same order as the input.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public final class BatchDecoder<MessageType extends ProtoMessage<MessageType>> {
+
+    /**
+     * Creates a decoder that runs on the common {@link ForkJoinPool}
+     */
+    public static <T extends ProtoMessage<T>> BatchDecoder<T> newInstance(final MessageFactory<T> factory) {
+        return newInstance(factory, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a decoder that runs on the specified executor
+     */
+    public static <T extends ProtoMessage<T>> BatchDecoder<T> newInstance(final MessageFactory<T> factory, final ExecutorService executor) {
+        return new BatchDecoder<>(factory, executor, 0);
+    }
+
+    private BatchDecoder(final MessageFactory<MessageType> factory, final ExecutorService executor, final int chunkSize) {
+        if (factory == null) throw new NullPointerException("factory");
+        if (executor == null) throw new NullPointerException("executor");
+        this.factory = factory;
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Returns a decoder that splits the work into chunks of the specified number
+     * of records. A value of zero selects the size based on the number of records
+     * and the parallelism of the executor.
+     */
+    public BatchDecoder<MessageType> withChunkSize(final int chunkSize) {
+        if (chunkSize < 0) throw new IllegalArgumentException("chunkSize must not be negative");
+        return new BatchDecoder<>(factory, executor, chunkSize);
+    }
+
+    /**
+     * Decodes each payload into a new message
+     *
+     * @return messages in the same order as the payloads
+     * @throws InvalidProtocolBufferException if any of the payloads can't be decoded
+     */
+    public List<MessageType> decode(final List<byte[]> payloads) throws IOException {
+        final byte[][] buffers = payloads.toArray(new byte[0][]);
+        final int[] offsets = new int[buffers.length];
+        final int[] lengths = new int[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            lengths[i] = buffers[i].length;
+        }
+        return decode(buffers, offsets, lengths, buffers.length);
+    }
+
+    /**
+     * Decodes a buffer of length-delimited records (a varint length prefix followed by
+     * the message bytes, e.g., written by {@link ProtoMessage#writeDelimitedTo(ProtoSink)}).
+     * The record boundaries get scanned sequentially, which only needs to read the
+     * length prefixes, before the records get decoded in parallel.
+     *
+     * @return messages in the same order as the records
+     * @throws InvalidProtocolBufferException if any of the records can't be decoded
+     */
+    public List<MessageType> decodeDelimited(final byte[] buffer, final int offset, final int length) throws IOException {
+        final RepeatedInt offsets = RepeatedInt.newEmptyInstance();
+        final RepeatedInt lengths = RepeatedInt.newEmptyInstance();
+        final ProtoSource source = ProtoSource.newInstance(buffer, offset, length);
+        while (!source.isAtEnd()) {
+            final int size = source.readRawVarint32();
+            if (size < 0) {
+                throw negativeSize();
+            }
+            offsets.add(offset + source.getPosition());
+            lengths.add(size);
+            source.skipRawBytes(size);
+        }
+
+        final byte[][] buffers = new byte[offsets.length()][];
+        Arrays.fill(buffers, buffer);
+        return decode(buffers, offsets.array(), lengths.array(), offsets.length());
+    }
+
+    public List<MessageType> decodeDelimited(final byte[] buffer) throws IOException {
+        return decodeDelimited(buffer, 0, buffer.length);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<MessageType> decode(final byte[][] buffers, final int[] offsets, final int[] lengths, final int count) throws IOException {
+        final MessageType[] results = (MessageType[]) new ProtoMessage[count];
+        final int chunk = getChunkSize(count);
+
+        // The caller decodes the first chunk while the executor works on the rest
+        final List<Future<?>> futures = new ArrayList<>(count / chunk);
+        for (int from = chunk; from < count; from += chunk) {
+            final int start = from;
+            final int end = Math.min(count, from + chunk);
+            futures.add(executor.submit(() -> {
+                decodeChunk(buffers, offsets, lengths, results, start, end);
+                return null;
+            }));
+        }
+
+        try {
+            decodeChunk(buffers, offsets, lengths, results, 0, Math.min(count, chunk));
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the batch to be decoded", e);
+        } catch (ExecutionException e) {
+            // ForkJoinPool wraps checked exceptions in a RuntimeException and may rethrow
+            // a copy of that, so the original exception can be further down the chain
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            final Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Failed to decode batch", cause);
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    private void decodeChunk(final byte[][] buffers, final int[] offsets, final int[] lengths,
+                             final MessageType[] results, final int from, final int to) throws IOException {
+        final ProtoSource source = ProtoSource.newInstance();
+        for (int i = from; i < to; i++) {
+            source.setInput(buffers[i], offsets[i], lengths[i]);
+            results[i] = ProtoMessage.mergeFrom(factory.create(), source);
+        }
+    }
+
+    private int getChunkSize(final int count) {
+        if (chunkSize > 0) {
+            return chunkSize;
+        }
+        // A few chunks per thread balances uneven message sizes
+        final int parallelism = executor instanceof ForkJoinPool ?
+                ((ForkJoinPool) executor).getParallelism() :
+                Runtime.getRuntime().availableProcessors();
+        final int chunks = 4 * Math.max(1, parallelism);
+        return Math.max(MIN_CHUNK_SIZE, (count + chunks - 1) / chunks);
+    }
+
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    private final MessageFactory<MessageType> factory;
+    private final ExecutorService executor;
+    private final int chunkSize;
+
+}
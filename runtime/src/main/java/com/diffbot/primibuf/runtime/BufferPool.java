@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package com.diffbot.primibuf.runtime;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Small thread-safe pool of equally sized {@link ByteBuffer}s, e.g., for
+ * encoding messages into direct buffers that get handed to socket writes.
+ * Allocating direct buffers is expensive, so steady-state encoding should
+ * release buffers back to the pool once they are no longer in use:
+ *
+ * <pre>{@code
+ * ByteBuffer buffer = pool.acquire();
+ * try {
+ *     sink.setOutput(buffer); // reusable ByteBufferSink
+ *     message.writeTo(sink);
+ *     buffer.limit(sink.position());
+ *     channel.write(buffer);
+ * } finally {
+ *     pool.release(buffer);
+ * }
+ * }</pre>
+ * <p>
+ * The pooled buffers are kept in a fixed-size array, so acquiring and
+ * releasing does not allocate unless the pool is empty.
+ */
+public final class BufferPool {
+
+    /**
+     * Creates a pool of direct buffers
+     *
+     * @param bufferSize capacity of each buffer in bytes
+     * @param maxPooled  maximum number of idle buffers that are kept around
+     */
+    public static BufferPool newDirectInstance(final int bufferSize, final int maxPooled) {
+        return new BufferPool(bufferSize, maxPooled, true);
+    }
+
+    /**
+     * Creates a pool of heap buffers
+     *
+     * @param bufferSize capacity of each buffer in bytes
+     * @param maxPooled  maximum number of idle buffers that are kept around
+     */
+    public static BufferPool newHeapInstance(final int bufferSize, final int maxPooled) {
+        return new BufferPool(bufferSize, maxPooled, false);
+    }
+
+    private BufferPool(final int bufferSize, final int maxPooled, final boolean direct) {
+        if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize must be positive");
+        if (maxPooled < 0) throw new IllegalArgumentException("maxPooled must not be negative");
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.pool = new ByteBuffer[maxPooled];
+    }
+
+    /**
+     * Returns a cleared buffer from the pool or allocates a new one
+     * if the pool is empty. The byte order is little-endian.
+     */
+    public ByteBuffer acquire() {
+        synchronized (pool) {
+            if (size > 0) {
+                final ByteBuffer buffer = pool[--size];
+                pool[size] = null;
+                ((Buffer) buffer).clear();
+                return buffer;
+            }
+        }
+        final ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that were not created by this
+     * pool or that don't fit into the pool anymore get dropped.
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        synchronized (pool) {
+            if (size < pool.length) {
+                pool[size++] = buffer;
+            }
+        }
+    }
+
+    /**
+     * @return capacity of the pooled buffers
+     */
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return number of idle buffers in the pool
+     */
+    public int size() {
+        synchronized (pool) {
+            return size;
+        }
+    }
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final ByteBuffer[] pool;
+    private int size = 0;
+
+}
@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package com.diffbot.primibuf.runtime;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static com.diffbot.primibuf.runtime.WireFormat.*;
+
+/**
+ * Sink that writes to a {@link ByteBuffer} without encoding to the heap first.
+ * This is mainly intended for direct buffers (e.g. NIO socket or pooled off-heap
+ * buffers, see {@link BufferPool}), but it works with any buffer type.
+ * <p>
+ * All writes use absolute indices, so the position and limit of the passed
+ * in buffer are not modified. After writing, the encoded bytes are located
+ * between the original position and the original position plus {@link #position()}.
+ * <p>
+ * Use {@link ProtoSink#newInstance(ByteBuffer)} to create instances.
+ */
+public final class ByteBufferSink extends ProtoSink {
+
+    ByteBufferSink(final ByteBuffer buffer) {
+        setOutput(buffer);
+    }
+
+    /**
+     * Changes the output to the remaining space of the buffer and resets the
+     * position. The position and limit of the buffer are not modified.
+     *
+     * @return this
+     */
+    public ByteBufferSink setOutput(final ByteBuffer buffer) {
+        this.byteBuffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.offset = buffer.position();
+        this.position = offset;
+        this.limit = buffer.limit();
+        return this;
+    }
+
+    /**
+     * Changes the output to the specified range of the array. The array gets
+     * wrapped in a heap buffer, so it is written the same way as other buffers.
+     *
+     * @return this
+     */
+    @Override
+    public ByteBufferSink setOutput(final byte[] buffer, final int offset, final int length) {
+        super.setOutput(buffer, offset, length); // validates the range
+        return setOutput(ByteBuffer.wrap(buffer, offset, length));
+    }
+
+    @Override
+    public void writeRawByte(final byte value) throws IOException {
+        if (position == limit) {
+            throw new OutOfSpaceException(position, limit);
+        }
+        byteBuffer.put(position++, value);
+    }
+
+    @Override
+    public void writeRawBytes(final byte[] value, final int offset, final int length) throws IOException {
+        requireSpace(length);
+        final ByteBuffer dst = byteBuffer;
+        ((Buffer) dst).position(position);
+        dst.put(value, offset, length);
+        position += length;
+    }
+
+    @Override
+    public void writeRawVarint32(int value) throws IOException {
+        if (limit - position < MAX_VARINT32_SIZE) {
+            requireSpace(computeRawVarint32Size(value));
+        }
+        final ByteBuffer dst = byteBuffer;
+        while ((value & ~0x7F) != 0) {
+            dst.put(position++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put(position++, (byte) value);
+    }
+
+    @Override
+    public void writeRawVarint64(long value) throws IOException {
+        if (limit - position < MAX_VARINT64_SIZE) {
+            requireSpace(computeRawVarint64Size(value));
+        }
+        final ByteBuffer dst = byteBuffer;
+        while ((value & ~0x7FL) != 0) {
+            dst.put(position++, (byte) (((int) value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        dst.put(position++, (byte) value);
+    }
+
+    @Override
+    public void writeRawLittleEndian32(final int value) throws IOException {
+        requireSpace(FIXED32_SIZE);
+        byteBuffer.putInt(position, value);
+        position += FIXED32_SIZE;
+    }
+
+    @Override
+    public void writeRawLittleEndian64(final long value) throws IOException {
+        requireSpace(FIXED64_SIZE);
+        byteBuffer.putLong(position, value);
+        position += FIXED64_SIZE;
+    }
+
+    /**
+     * Strings get encoded into a reusable heap array first, so that the
+     * bytes can be transferred to the buffer with a single bulk put.
+     */
+    @Override
+    void writeRawUtf8(final CharSequence value, final int encodedLength) throws IOException {
+        requireSpace(encodedLength);
+        if (scratch.length < encodedLength) {
+            scratch = new byte[Math.max(encodedLength, scratch.length * 2)];
+        }
+        Utf8.encode(value, scratch, 0);
+        writeRawBytes(scratch, 0, encodedLength);
+    }
+
+    @Override
+    void writeRawLittleEndianInts(final int[] values, final int offset, final int count) throws IOException {
+        requireSpace(FIXED32_SIZE * count);
+        final ByteBuffer dst = byteBuffer;
+        int pos = position;
+        for (int i = 0; i < count; i++, pos += FIXED32_SIZE) {
+            dst.putInt(pos, values[offset + i]);
+        }
+        position = pos;
+    }
+
+    @Override
+    void writeRawLittleEndianLongs(final long[] values, final int offset, final int count) throws IOException {
+        requireSpace(FIXED64_SIZE * count);
+        final ByteBuffer dst = byteBuffer;
+        int pos = position;
+        for (int i = 0; i < count; i++, pos += FIXED64_SIZE) {
+            dst.putLong(pos, values[offset + i]);
+        }
+        position = pos;
+    }
+
+    @Override
+    void writeRawLittleEndianFloats(final float[] values, final int offset, final int count) throws IOException {
+        requireSpace(FIXED32_SIZE * count);
+        final ByteBuffer dst = byteBuffer;
+        int pos = position;
+        for (int i = 0; i < count; i++, pos += FIXED32_SIZE) {
+            dst.putFloat(pos, values[offset + i]);
+        }
+        position = pos;
+    }
+
+    @Override
+    void writeRawLittleEndianDoubles(final double[] values, final int offset, final int count) throws IOException {
+        requireSpace(FIXED64_SIZE * count);
+        final ByteBuffer dst = byteBuffer;
+        int pos = position;
+        for (int i = 0; i < count; i++, pos += FIXED64_SIZE) {
+            dst.putDouble(pos, values[offset + i]);
+        }
+        position = pos;
+    }
+
+    private ByteBuffer byteBuffer;
+    private byte[] scratch = ProtoUtil.EMPTY_BYTE_ARRAY;
+
+}
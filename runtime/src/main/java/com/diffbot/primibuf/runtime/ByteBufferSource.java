@@ -0,0 +1,413 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.runtime;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static com.diffbot.primibuf.runtime.InvalidProtocolBufferException.*;
+import static com.diffbot.primibuf.runtime.WireFormat.*;
+
+/**
+ * Source that reads from a {@link ByteBuffer} without copying the contents
+ * to the heap first. This is mainly intended for direct buffers (e.g. NIO
+ * socket or pooled off-heap buffers), but it works with any buffer type.
+ * <p>
+ * All reads use absolute indices, so the position and limit of the passed
+ * in buffer are not modified. Fixed width values are read with bounds-checked
+ * little-endian bulk reads, and varints use the same fast paths as the array
+ * backed {@link ProtoSource}.
+ * <p>
+ * Use {@link ProtoSource#newInstance(ByteBuffer)} to create instances.
+ */
+public final class ByteBufferSource extends ProtoSource {
+
+    ByteBufferSource(final ByteBuffer buffer) {
+        super(buffer.position(), buffer.remaining());
+        this.byteBuffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Changes the input to the remaining bytes of the buffer and resets the
+     * internal state. The position and limit of the buffer are not modified.
+     *
+     * @return this
+     */
+    public ByteBufferSource setInput(final ByteBuffer buffer) {
+        this.byteBuffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        resetInternalState(buffer.position(), buffer.remaining());
+        return this;
+    }
+
+    /**
+     * Changes the input to the specified range of the array. The array gets
+     * wrapped in a heap buffer, so it is read the same way as other buffers.
+     *
+     * @return this
+     */
+    @Override
+    public ByteBufferSource setInput(final byte[] buffer, final int offset, final int len) {
+        return setInput(ByteBuffer.wrap(buffer, offset, len));
+    }
+
+    @Override
+    public String readString() throws IOException {
+        final int size = readRawVarint32();
+        if (size > 0 && size <= (limit - pos)) {
+            final byte[] bytes = getScratch(size);
+            getRawBytes(pos, bytes, size);
+            pos += size;
+            return Utf8.decode(bytes, 0, size);
+        }
+
+        if (size == 0) {
+            return "";
+        }
+        if (size < 0) {
+            throw negativeSize();
+        }
+        throw truncatedMessage();
+    }
+
+    @Override
+    public void readBytes(final ByteSlice store) throws IOException {
+        final int size = readRawVarint32();
+        if (size >= 0 && size <= (limit - pos)) {
+            final byte[] bytes = store.reserveStorage(size);
+            getRawBytes(pos, bytes, size);
+            store.setView(bytes, 0, size);
+            pos += size;
+            return;
+        }
+
+        if (size < 0) {
+            throw negativeSize();
+        }
+        throw truncatedMessage();
+    }
+
+    @Override
+    public void readMessage(final LazyMessage<?> store) throws IOException {
+        final int size = readRawVarint32();
+        if (size >= 0 && size <= (limit - pos)) {
+            final byte[] bytes = store.reserveStorage(size);
+            getRawBytes(pos, bytes, size);
+            store.setView(bytes, 0, size);
+            pos += size;
+            return;
+        }
+
+        if (size < 0) {
+            throw negativeSize();
+        }
+        throw truncatedMessage();
+    }
+
+    @Override
+    public String readInternedString() throws IOException {
+        final int size = readRawVarint32();
+        if (size > 0 && size <= (limit - pos)) {
+            final byte[] bytes = getScratch(size);
+            getRawBytes(pos, bytes, size);
+            pos += size;
+            return stringInterner.intern(bytes, 0, size);
+        }
+
+        if (size == 0) {
+            return "";
+        }
+        if (size < 0) {
+            throw negativeSize();
+        }
+        throw truncatedMessage();
+    }
+
+    @Override
+    public void readString(final Utf8String store) throws IOException {
+        final int size = readRawVarint32();
+        if (size >= 0 && size <= (limit - pos)) {
+            final byte[] bytes = store.reserveStorage(size);
+            getRawBytes(pos, bytes, size);
+            store.setView(bytes, 0, size);
+            pos += size;
+            return;
+        }
+
+        if (size < 0) {
+            throw negativeSize();
+        }
+        throw truncatedMessage();
+    }
+
+    @Override
+    public int readRawVarint32() throws IOException {
+        // See implementation notes for ProtoSource::readRawVarint64
+        fastpath:
+        {
+            int tempPos = pos;
+
+            if (limit == tempPos) {
+                break fastpath;
+            }
+
+            final ByteBuffer buffer = this.byteBuffer;
+            int x;
+            if ((x = buffer.get(tempPos++)) >= 0) {
+                pos = tempPos;
+                return x;
+            } else if (limit - tempPos < 9) {
+                break fastpath;
+            } else if ((x ^= (buffer.get(tempPos++) << 7)) < 0) {
+                x ^= (~0 << 7);
+            } else if ((x ^= (buffer.get(tempPos++) << 14)) >= 0) {
+                x ^= (~0 << 7) ^ (~0 << 14);
+            } else if ((x ^= (buffer.get(tempPos++) << 21)) < 0) {
+                x ^= (~0 << 7) ^ (~0 << 14) ^ (~0 << 21);
+            } else {
+                int y = buffer.get(tempPos++);
+                x ^= y << 28;
+                x ^= (~0 << 7) ^ (~0 << 14) ^ (~0 << 21) ^ (~0 << 28);
+                if (y < 0
+                        && buffer.get(tempPos++) < 0
+                        && buffer.get(tempPos++) < 0
+                        && buffer.get(tempPos++) < 0
+                        && buffer.get(tempPos++) < 0
+                        && buffer.get(tempPos++) < 0) {
+                    break fastpath; // Will throw malformedVarint()
+                }
+            }
+            pos = tempPos;
+            return x;
+        }
+        return (int) readRawVarint64SlowPath();
+    }
+
+    @Override
+    void skipRawVarintFastPath() throws IOException {
+        for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+            if (byteBuffer.get(pos++) >= 0) {
+                return;
+            }
+        }
+        throw malformedVarint();
+    }
+
+    @Override
+    public long readRawVarint64() throws IOException {
+        // See implementation notes for ProtoSource::readRawVarint64
+        fastpath:
+        {
+            int tempPos = pos;
+
+            if (limit == tempPos) {
+                break fastpath;
+            }
+
+            final ByteBuffer buffer = this.byteBuffer;
+            long x;
+            int y;
+            if ((y = buffer.get(tempPos++)) >= 0) {
+                pos = tempPos;
+                return y;
+            } else if (limit - tempPos < 9) {
+                break fastpath;
+            } else if ((y ^= (buffer.get(tempPos++) << 7)) < 0) {
+                x = y ^ (~0 << 7);
+            } else if ((y ^= (buffer.get(tempPos++) << 14)) >= 0) {
+                x = y ^ ((~0 << 7) ^ (~0 << 14));
+            } else if ((y ^= (buffer.get(tempPos++) << 21)) < 0) {
+                x = y ^ ((~0 << 7) ^ (~0 << 14) ^ (~0 << 21));
+            } else if ((x = y ^ ((long) buffer.get(tempPos++) << 28)) >= 0L) {
+                x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28);
+            } else if ((x ^= ((long) buffer.get(tempPos++) << 35)) < 0L) {
+                x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28) ^ (~0L << 35);
+            } else if ((x ^= ((long) buffer.get(tempPos++) << 42)) >= 0L) {
+                x ^= (~0L << 7) ^ (~0L << 14) ^ (~0L << 21) ^ (~0L << 28) ^ (~0L << 35) ^ (~0L << 42);
+            } else if ((x ^= ((long) buffer.get(tempPos++) << 49)) < 0L) {
+                x ^=
+                        (~0L << 7)
+                                ^ (~0L << 14)
+                                ^ (~0L << 21)
+                                ^ (~0L << 28)
+                                ^ (~0L << 35)
+                                ^ (~0L << 42)
+                                ^ (~0L << 49);
+            } else {
+                x ^= ((long) buffer.get(tempPos++) << 56);
+                x ^=
+                        (~0L << 7)
+                                ^ (~0L << 14)
+                                ^ (~0L << 21)
+                                ^ (~0L << 28)
+                                ^ (~0L << 35)
+                                ^ (~0L << 42)
+                                ^ (~0L << 49)
+                                ^ (~0L << 56);
+                if (x < 0L) {
+                    if (buffer.get(tempPos++) < 0L) {
+                        break fastpath; // Will throw malformedVarint()
+                    }
+                }
+            }
+            pos = tempPos;
+            return x;
+        }
+        return readRawVarint64SlowPath();
+    }
+
+    @Override
+    public int readRawLittleEndian32() throws IOException {
+        final int tempPos = pos;
+        if (limit - tempPos < FIXED32_SIZE) {
+            throw truncatedMessage();
+        }
+        pos = tempPos + FIXED32_SIZE;
+        return byteBuffer.getInt(tempPos);
+    }
+
+    @Override
+    public long readRawLittleEndian64() throws IOException {
+        final int tempPos = pos;
+        if (limit - tempPos < FIXED64_SIZE) {
+            throw truncatedMessage();
+        }
+        pos = tempPos + FIXED64_SIZE;
+        return byteBuffer.getLong(tempPos);
+    }
+
+    @Override
+    public byte readRawByte() throws IOException {
+        if (pos == limit) {
+            throw truncatedMessage();
+        }
+        return byteBuffer.get(pos++);
+    }
+
+    @Override
+    public byte[] readRawBytes(final int length) throws IOException {
+        if (length > 0 && length <= (limit - pos)) {
+            final byte[] bytes = new byte[length];
+            getRawBytes(pos, bytes, length);
+            pos += length;
+            return bytes;
+        }
+
+        if (length <= 0) {
+            if (length == 0) {
+                return ProtoUtil.EMPTY_BYTE_ARRAY;
+            } else {
+                throw negativeSize();
+            }
+        }
+        throw truncatedMessage();
+    }
+
+    /**
+     * Counts the bytes with a clear MSB using absolute reads on the buffer, so the
+     * data doesn't need to be copied. The MSB is independent of the byte order, so
+     * eight bytes get checked at a time.
+     */
+    @Override
+    int countPackedVarints(final int length) throws IOException {
+        if (length > limit - pos) {
+            throw truncatedMessage();
+        }
+        int count = 0;
+        int i = pos;
+        final int end = pos + length;
+        for (; end - i >= 8; i += 8) {
+            count += Long.bitCount(~byteBuffer.getLong(i) & VARINT_MSB_MASK);
+        }
+        for (; i < end; i++) {
+            count += ~byteBuffer.get(i) >>> 31;
+        }
+        return count;
+    }
+
+    @Override
+    void readRawLittleEndianInts(final int[] dst, final int offset, final int count) throws IOException {
+        final int length = count * FIXED32_SIZE;
+        if (length > limit - pos) {
+            throw truncatedMessage();
+        }
+        ((Buffer) byteBuffer).position(pos);
+        byteBuffer.asIntBuffer().get(dst, offset, count);
+        pos += length;
+    }
+
+    @Override
+    void readRawLittleEndianLongs(final long[] dst, final int offset, final int count) throws IOException {
+        final int length = count * FIXED64_SIZE;
+        if (length > limit - pos) {
+            throw truncatedMessage();
+        }
+        ((Buffer) byteBuffer).position(pos);
+        byteBuffer.asLongBuffer().get(dst, offset, count);
+        pos += length;
+    }
+
+    @Override
+    void readRawLittleEndianFloats(final float[] dst, final int offset, final int count) throws IOException {
+        final int length = count * FIXED32_SIZE;
+        if (length > limit - pos) {
+            throw truncatedMessage();
+        }
+        ((Buffer) byteBuffer).position(pos);
+        byteBuffer.asFloatBuffer().get(dst, offset, count);
+        pos += length;
+    }
+
+    @Override
+    void readRawLittleEndianDoubles(final double[] dst, final int offset, final int count) throws IOException {
+        final int length = count * FIXED64_SIZE;
+        if (length > limit - pos) {
+            throw truncatedMessage();
+        }
+        ((Buffer) byteBuffer).position(pos);
+        byteBuffer.asDoubleBuffer().get(dst, offset, count);
+        pos += length;
+    }
+
+    /**
+     * Bulk copies bytes starting at an absolute index. The buffer position is used
+     * as scratch space since it is not otherwise used by this source.
+     */
+    private void getRawBytes(final int index, final byte[] dst, final int length) {
+        // cast to Buffer for binary compatibility with Java 8 (covariant return types in 9+)
+        ((Buffer) byteBuffer).position(index);
+        byteBuffer.get(dst, 0, length);
+    }
+
+    private byte[] getScratch(final int size) {
+        if (scratch.length < size) {
+            scratch = new byte[Math.max(size, scratch.length * 2)];
+        }
+        return scratch;
+    }
+
+    private ByteBuffer byteBuffer;
+    private byte[] scratch = new byte[64];
+
+}
@@ -0,0 +1,196 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.runtime;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Storage for bytes fields that references a range of an existing array rather
+ * than owning a copy of the data.
+ * <p>
+ * When decoding from an array backed {@link ProtoSource} the bytes are not
+ * copied, i.e., this is a view into the input buffer. The contents are only
+ * valid for as long as the input buffer does not get modified. Call
+ * {@link #copy()} or {@link #toArray()} if the data needs to outlive the buffer.
+ * Other sources copy the bytes into internal storage that gets reused.
+ */
+public final class ByteSlice {
+
+    public static ByteSlice newEmptyInstance() {
+        return new ByteSlice();
+    }
+
+    /**
+     * @return slice that owns a copy of the specified bytes
+     */
+    public static ByteSlice newInstance(byte[] bytes) {
+        return newEmptyInstance().copyFrom(bytes);
+    }
+
+    /**
+     * @return slice that references the specified range without copying
+     */
+    public static ByteSlice wrap(byte[] bytes, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IndexOutOfBoundsException("offset=" + offset + ", length=" + length + ", array length=" + bytes.length);
+        }
+        final ByteSlice slice = newEmptyInstance();
+        slice.setView(bytes, offset, length);
+        return slice;
+    }
+
+    private ByteSlice() {
+    }
+
+    public int size() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    public byte get(int index) {
+        if (index < 0 || index >= length) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+        return bytes[offset + index];
+    }
+
+    /**
+     * Provides access to the array that contains the data. Note that the data
+     * starts at {@link #offset()}, and that this may be the input buffer of a source.
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    /**
+     * @return read-only buffer that wraps the data without copying
+     */
+    public ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes, offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a new slice that owns a copy of the data and that remains valid after the input buffer changes
+     */
+    public ByteSlice copy() {
+        return newEmptyInstance().copyFrom(this);
+    }
+
+    /**
+     * @return a copy of the data
+     */
+    public byte[] toArray() {
+        if (length == 0) return ProtoUtil.EMPTY_BYTE_ARRAY;
+        return Arrays.copyOfRange(bytes, offset, offset + length);
+    }
+
+    /**
+     * Copies the data into internal storage
+     *
+     * @return this
+     */
+    public ByteSlice copyFrom(byte[] values) {
+        System.arraycopy(values, 0, reserveStorage(values.length), 0, values.length);
+        setView(storage, 0, values.length);
+        return this;
+    }
+
+    /**
+     * Copies the data of the other slice into internal storage
+     *
+     * @return this
+     */
+    public ByteSlice copyFrom(ByteSlice other) {
+        System.arraycopy(other.bytes, other.offset, reserveStorage(other.length), 0, other.length);
+        setView(storage, 0, other.length);
+        return this;
+    }
+
+    public ByteSlice clear() {
+        setView(ProtoUtil.EMPTY_BYTE_ARRAY, 0, 0);
+        return this;
+    }
+
+    /**
+     * Points this slice at the specified range without copying
+     */
+    void setView(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @return internal storage that can hold at least the specified number of bytes
+     */
+    byte[] reserveStorage(int size) {
+        if (storage.length < size) {
+            storage = new byte[size];
+        }
+        return storage;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        ByteSlice other = (ByteSlice) o;
+
+        if (length != other.length)
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != other.bytes[other.offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = 0; i < length; i++) {
+            result = 31 * result + bytes[offset + i];
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ByteSlice{size=" + length + "}";
+    }
+
+    private byte[] bytes = ProtoUtil.EMPTY_BYTE_ARRAY;
+    private int offset = 0;
+    private int length = 0;
+    private byte[] storage = ProtoUtil.EMPTY_BYTE_ARRAY;
+
+}
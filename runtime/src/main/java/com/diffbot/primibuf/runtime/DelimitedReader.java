@@ -0,0 +1,194 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package com.diffbot.primibuf.runtime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads a sequence of length-delimited messages (a varint length prefix followed
+ * by the message bytes, e.g., written by {@link ProtoMessage#writeDelimitedTo(ProtoSink)})
+ * from an array, a {@link ByteBuffer}, or an {@link InputStream}. Records get decoded
+ * directly from the underlying source, so there is no intermediate copy per record.
+ * <p>
+ * Records can be merged into caller-owned messages using {@link #readNext(ProtoMessage)},
+ * or iterated using {@link #iterator(MessageFactory, int)}, which clears and refills
+ * a small ring of reused instances.
+ * <p>
+ * The number of records and bytes that have been read are tracked for monitoring.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class DelimitedReader {
+
+    public static DelimitedReader newInstance(final byte[] buffer) {
+        return new DelimitedReader(ProtoSource.newInstance(buffer));
+    }
+
+    public static DelimitedReader newInstance(final byte[] buffer, final int offset, final int length) {
+        return new DelimitedReader(ProtoSource.newInstance(buffer, offset, length));
+    }
+
+    /**
+     * Reads the remaining bytes of the buffer. The position and limit of the
+     * buffer are not modified.
+     */
+    public static DelimitedReader newInstance(final ByteBuffer buffer) {
+        return new DelimitedReader(ProtoSource.newInstance(buffer));
+    }
+
+    /**
+     * Reads from a stream through a refillable buffer with a default size of 4 KB.
+     * Records may be larger than the buffer.
+     */
+    public static DelimitedReader newInstance(final InputStream input) {
+        return new DelimitedReader(ProtoSource.newInstance(input));
+    }
+
+    public static DelimitedReader newInstance(final InputStream input, final int bufferSize) {
+        return new DelimitedReader(ProtoSource.newInstance(input, bufferSize));
+    }
+
+    private DelimitedReader(final ProtoSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Merges the next record into the message. The message does not get
+     * cleared, so callers that reuse an instance need to call clear() first.
+     *
+     * @param message message that the record gets merged into
+     * @return false if there are no more records
+     */
+    public boolean readNext(final ProtoMessage<?> message) throws IOException {
+        // The source tracks positions as int, so the counter gets reset for
+        // every record to support streams that are larger than 2 GB.
+        source.resetSizeCounter();
+        if (source.isAtEnd()) {
+            return false;
+        }
+        source.readMessage(message);
+        bytesRead += source.getTotalBytesRead();
+        recordsRead++;
+        return true;
+    }
+
+    /**
+     * @return true if there are more records
+     */
+    public boolean hasNext() throws IOException {
+        return !source.isAtEnd();
+    }
+
+    /**
+     * Returns an iterator that creates a new message for every record
+     */
+    public <T extends ProtoMessage<T>> Iterator<T> iterator(final MessageFactory<T> factory) {
+        return new RecordIterator<>(factory, 0);
+    }
+
+    /**
+     * Returns an iterator that reuses a ring of {@code ringSize} messages, i.e., every
+     * returned message gets cleared and refilled {@code ringSize} records later. This
+     * allows consumers to hold on to a few recent records without allocating.
+     *
+     * @param ringSize number of reused instances. Must be at least 1.
+     */
+    public <T extends ProtoMessage<T>> Iterator<T> iterator(final MessageFactory<T> factory, final int ringSize) {
+        if (ringSize < 1) throw new IllegalArgumentException("ringSize must be at least 1");
+        return new RecordIterator<>(factory, ringSize);
+    }
+
+    /**
+     * @return number of records that have been read
+     */
+    public long getRecordsRead() {
+        return recordsRead;
+    }
+
+    /**
+     * @return number of bytes that have been read including the length prefixes
+     */
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    private class RecordIterator<T extends ProtoMessage<T>> implements Iterator<T> {
+
+        @SuppressWarnings("unchecked")
+        RecordIterator(final MessageFactory<T> factory, final int ringSize) {
+            this.factory = factory;
+            this.ring = (T[]) new ProtoMessage[ringSize];
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                return DelimitedReader.this.hasNext();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read from source", e);
+            }
+        }
+
+        @Override
+        public T next() {
+            final T message = nextInstance();
+            try {
+                if (!readNext(message)) {
+                    throw new NoSuchElementException();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to read delimited message", e);
+            }
+            return message;
+        }
+
+        private T nextInstance() {
+            if (ring.length == 0) {
+                return factory.create();
+            }
+            T message = ring[index];
+            if (message == null) {
+                message = ring[index] = factory.create();
+            } else {
+                message.clear();
+            }
+            index = (index + 1) % ring.length;
+            return message;
+        }
+
+        private final MessageFactory<T> factory;
+        private final T[] ring;
+        private int index = 0;
+
+    }
+
+    private final ProtoSource source;
+    private long recordsRead = 0;
+    private long bytesRead = 0;
+
+}
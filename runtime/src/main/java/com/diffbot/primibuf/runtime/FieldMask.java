@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.runtime;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Selects a subset of fields that should be decoded. Fields that are not
+ * selected, including entire sub-trees, get skipped without being decoded
+ * or allocated.
+ * <p>
+ * A mask is created from dot separated paths of proto field names, e.g.,
+ * {@code Entity.newFieldMask("id", "mentions.text")}. Selecting a message
+ * field without sub-paths selects all of its fields. Masks are immutable
+ * and can be shared between threads. They get applied by setting them on
+ * the source, i.e., {@link ProtoSource#setFieldMask(FieldMask)}.
+ */
+public final class FieldMask {
+
+    /**
+     * Maps field names to numbers for a message type. Implementations get
+     * generated for every message when the field_masks option is enabled.
+     */
+    public interface Resolver {
+
+        /**
+         * @return field number, or a negative value if the message has no such field
+         */
+        int getFieldNumber(String fieldName);
+
+        /**
+         * @return resolver for the type of a message field, or null if the field is not a message
+         */
+        Resolver getChildResolver(int fieldNumber);
+
+    }
+
+    /**
+     * @param resolver resolver of the root message type
+     * @param paths    dot separated field names, e.g., "mentions.text"
+     * @return mask that selects the specified paths
+     * @throws IllegalArgumentException if a path does not exist
+     */
+    public static FieldMask fromPaths(Resolver resolver, String... paths) {
+        final Node root = new Node();
+        for (String path : paths) {
+            Node node = root;
+            Resolver current = resolver;
+            final String[] names = path.split("\\.", -1);
+            for (int i = 0; i < names.length; i++) {
+                if (current == null) {
+                    throw new IllegalArgumentException("Not a message field: '" + names[i - 1] + "' in path '" + path + "'");
+                }
+                final int number = current.getFieldNumber(names[i]);
+                if (number < 0) {
+                    throw new IllegalArgumentException("Unknown field: '" + names[i] + "' in path '" + path + "'");
+                }
+                if (i == names.length - 1) {
+                    // selecting a field includes all of its sub-fields
+                    node.children.put(number, null);
+                } else if (!node.children.containsKey(number) || node.children.get(number) != null) {
+                    node = node.children.computeIfAbsent(number, n -> new Node());
+                    current = current.getChildResolver(number);
+                } else {
+                    break; // the whole field has already been selected
+                }
+            }
+        }
+        return root.build();
+    }
+
+    /**
+     * @return true if the field should be decoded
+     */
+    public boolean contains(int fieldNumber) {
+        final int word = fieldNumber >>> 6;
+        return word < bits.length && (bits[word] & (1L << fieldNumber)) != 0;
+    }
+
+    /**
+     * @return mask for the fields of a selected message field, or null if all fields are selected
+     */
+    public FieldMask getChild(int fieldNumber) {
+        return fieldNumber < children.length ? children[fieldNumber] : null;
+    }
+
+    private FieldMask(long[] bits, FieldMask[] children) {
+        this.bits = bits;
+        this.children = children;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("FieldMask{");
+        String separator = "";
+        for (int i = 0; i < bits.length * 64; i++) {
+            if (contains(i)) {
+                builder.append(separator).append(i);
+                if (getChild(i) != null) {
+                    builder.append('=').append(getChild(i));
+                }
+                separator = ", ";
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+    private static class Node {
+
+        FieldMask build() {
+            final int maxNumber = children.isEmpty() ? 0 : children.lastKey();
+            final long[] bits = new long[(maxNumber >>> 6) + 1];
+            FieldMask[] masks = new FieldMask[maxNumber + 1];
+            int maxChild = -1;
+            for (Map.Entry<Integer, Node> entry : children.entrySet()) {
+                final int number = entry.getKey();
+                bits[number >>> 6] |= 1L << number;
+                if (entry.getValue() != null) {
+                    masks[number] = entry.getValue().build();
+                    maxChild = number;
+                }
+            }
+            return new FieldMask(bits, Arrays.copyOf(masks, maxChild + 1));
+        }
+
+        // null values select the entire field
+        final TreeMap<Integer, Node> children = new TreeMap<>();
+
+    }
+
+    private final long[] bits;
+    private final FieldMask[] children;
+
+}
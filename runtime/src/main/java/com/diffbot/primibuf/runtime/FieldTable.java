@@ -0,0 +1,662 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package com.diffbot.primibuf.runtime;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Describes the fields of a message type so that a single shared loop can parse
+ * all messages that were generated in table-driven mode. The generated mergeFrom
+ * only delegates to {@link #mergeFrom(ProtoMessage, ProtoSource)}, so its size
+ * does not grow with the number of fields, e.g.,
+ *
+ * <pre>{@code
+ * private static final FieldTable FIELD_TABLE = FieldTable.newBuilder(Message.class)
+ *         .add(8, FieldTable.INT64, "id", 0)
+ *         .add(18, FieldTable.STRING, "name", 1)
+ *         .add(26, FieldTable.CUSTOM)
+ *         .build();
+ * }</pre>
+ * <p>
+ * Each entry maps a tag to the kind of the field, the member that stores the value,
+ * and the index of its has bit. Members get accessed through Unsafe offsets where
+ * available, and through reflection otherwise. Fields that need more than storing
+ * a value, e.g., oneofs, enums, and nested messages, are marked as {@link #CUSTOM}
+ * and get delegated to {@link ProtoMessage#mergeCustomField(int, ProtoSource)}.
+ * <p>
+ * Entries should be added in the expected order of the incoming data. The loop
+ * checks the entry after the previous one before looking the tag up, so data that
+ * is in the expected order never needs a lookup.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public final class FieldTable {
+
+    // Singular values that get stored in a member of the matching primitive type
+    public static final int DOUBLE = 1;
+    public static final int FLOAT = 2;
+    public static final int INT64 = 3;
+    public static final int UINT64 = 4;
+    public static final int INT32 = 5;
+    public static final int FIXED64 = 6;
+    public static final int FIXED32 = 7;
+    public static final int BOOL = 8;
+    public static final int UINT32 = 9;
+    public static final int SFIXED32 = 10;
+    public static final int SFIXED64 = 11;
+    public static final int SINT32 = 12;
+    public static final int SINT64 = 13;
+
+    // Singular values that get stored in a String, byte[], Utf8String, or ByteSlice member
+    public static final int STRING = 14;
+    public static final int INTERNED_STRING = 15;
+    public static final int BYTES = 16;
+    public static final int UTF8_STRING = 17;
+    public static final int BYTE_SLICE = 18;
+
+    // Non-packed repeated values that get appended to a RepeatedInt, RepeatedLong etc. member
+    public static final int REPEATED_DOUBLE = 19;
+    public static final int REPEATED_FLOAT = 20;
+    public static final int REPEATED_INT64 = 21;
+    public static final int REPEATED_UINT64 = 22;
+    public static final int REPEATED_INT32 = 23;
+    public static final int REPEATED_FIXED64 = 24;
+    public static final int REPEATED_FIXED32 = 25;
+    public static final int REPEATED_BOOL = 26;
+    public static final int REPEATED_UINT32 = 27;
+    public static final int REPEATED_SFIXED32 = 28;
+    public static final int REPEATED_SFIXED64 = 29;
+    public static final int REPEATED_SINT32 = 30;
+    public static final int REPEATED_SINT64 = 31;
+
+    // Packed repeated values that get appended to a RepeatedInt, RepeatedLong etc. member
+    public static final int PACKED_DOUBLE = 32;
+    public static final int PACKED_FLOAT = 33;
+    public static final int PACKED_INT64 = 34;
+    public static final int PACKED_UINT64 = 35;
+    public static final int PACKED_INT32 = 36;
+    public static final int PACKED_FIXED64 = 37;
+    public static final int PACKED_FIXED32 = 38;
+    public static final int PACKED_BOOL = 39;
+    public static final int PACKED_UINT32 = 40;
+    public static final int PACKED_SFIXED32 = 41;
+    public static final int PACKED_SFIXED64 = 42;
+    public static final int PACKED_SINT32 = 43;
+    public static final int PACKED_SINT64 = 44;
+
+    /**
+     * Fields that get merged by {@link ProtoMessage#mergeCustomField(int, ProtoSource)}
+     */
+    public static final int CUSTOM = 45;
+
+    /**
+     * Flag that can be combined with any kind. The field only gets decoded if it
+     * is selected by the {@link FieldMask} of the source.
+     */
+    public static final int MASKABLE = 0x100;
+
+    public static Builder newBuilder(final Class<? extends ProtoMessage> type) {
+        return new Builder(type);
+    }
+
+    /**
+     * Parses the fields of {@code message} until the end of the input, or until
+     * an end group tag is reached.
+     *
+     * @param message message of the type that this table was built for
+     * @param input   source of the encoded fields
+     */
+    public void mergeFrom(final ProtoMessage<?> message, final ProtoSource input) throws IOException {
+        final FieldMask mask = input.getFieldMask();
+        int entry = -1;
+        while (true) {
+            final int tag = input.readTag();
+            if (tag == 0) {
+                return;
+            }
+
+            // Fast path for data in the expected order, lookup otherwise
+            if (++entry >= tags.length || tags[entry] != tag) {
+                entry = findEntry(tag);
+                if (entry < 0) {
+                    if (!input.skipField(tag)) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+
+            final int kind = kinds[entry];
+            if ((kind & MASKABLE) != 0 && mask != null && !mask.contains(tag >>> 3)) {
+                input.skipField(tag);
+                continue;
+            }
+
+            switch (kind & ~MASKABLE) {
+                case DOUBLE:
+                    putDouble(message, entry, input.readDouble());
+                    break;
+                case FLOAT:
+                    putFloat(message, entry, input.readFloat());
+                    break;
+                case INT64:
+                    putLong(message, entry, input.readInt64());
+                    break;
+                case UINT64:
+                    putLong(message, entry, input.readUInt64());
+                    break;
+                case INT32:
+                    putInt(message, entry, input.readInt32());
+                    break;
+                case FIXED64:
+                    putLong(message, entry, input.readFixed64());
+                    break;
+                case FIXED32:
+                    putInt(message, entry, input.readFixed32());
+                    break;
+                case BOOL:
+                    putBoolean(message, entry, input.readBool());
+                    break;
+                case UINT32:
+                    putInt(message, entry, input.readUInt32());
+                    break;
+                case SFIXED32:
+                    putInt(message, entry, input.readSFixed32());
+                    break;
+                case SFIXED64:
+                    putLong(message, entry, input.readSFixed64());
+                    break;
+                case SINT32:
+                    putInt(message, entry, input.readSInt32());
+                    break;
+                case SINT64:
+                    putLong(message, entry, input.readSInt64());
+                    break;
+
+                case STRING:
+                    putObject(message, entry, input.readString());
+                    break;
+                case INTERNED_STRING:
+                    putObject(message, entry, input.readInternedString());
+                    break;
+                case BYTES:
+                    putObject(message, entry, input.readBytes());
+                    break;
+                case UTF8_STRING:
+                    input.readString((Utf8String) getObject(message, entry));
+                    break;
+                case BYTE_SLICE:
+                    input.readBytes((ByteSlice) getObject(message, entry));
+                    break;
+
+                case REPEATED_DOUBLE:
+                    input.readRepeatedDouble((RepeatedDouble) getObject(message, entry), tag);
+                    break;
+                case REPEATED_FLOAT:
+                    input.readRepeatedFloat((RepeatedFloat) getObject(message, entry), tag);
+                    break;
+                case REPEATED_INT64:
+                    input.readRepeatedInt64((RepeatedLong) getObject(message, entry), tag);
+                    break;
+                case REPEATED_UINT64:
+                    input.readRepeatedUInt64((RepeatedLong) getObject(message, entry), tag);
+                    break;
+                case REPEATED_INT32:
+                    input.readRepeatedInt32((RepeatedInt) getObject(message, entry), tag);
+                    break;
+                case REPEATED_FIXED64:
+                    input.readRepeatedFixed64((RepeatedLong) getObject(message, entry), tag);
+                    break;
+                case REPEATED_FIXED32:
+                    input.readRepeatedFixed32((RepeatedInt) getObject(message, entry), tag);
+                    break;
+                case REPEATED_BOOL:
+                    input.readRepeatedBool((RepeatedBoolean) getObject(message, entry), tag);
+                    break;
+                case REPEATED_UINT32:
+                    input.readRepeatedUInt32((RepeatedInt) getObject(message, entry), tag);
+                    break;
+                case REPEATED_SFIXED32:
+                    input.readRepeatedSFixed32((RepeatedInt) getObject(message, entry), tag);
+                    break;
+                case REPEATED_SFIXED64:
+                    input.readRepeatedSFixed64((RepeatedLong) getObject(message, entry), tag);
+                    break;
+                case REPEATED_SINT32:
+                    input.readRepeatedSInt32((RepeatedInt) getObject(message, entry), tag);
+                    break;
+                case REPEATED_SINT64:
+                    input.readRepeatedSInt64((RepeatedLong) getObject(message, entry), tag);
+                    break;
+
+                case PACKED_DOUBLE:
+                    input.readPackedDouble((RepeatedDouble) getObject(message, entry));
+                    break;
+                case PACKED_FLOAT:
+                    input.readPackedFloat((RepeatedFloat) getObject(message, entry));
+                    break;
+                case PACKED_INT64:
+                    input.readPackedInt64((RepeatedLong) getObject(message, entry));
+                    break;
+                case PACKED_UINT64:
+                    input.readPackedUInt64((RepeatedLong) getObject(message, entry));
+                    break;
+                case PACKED_INT32:
+                    input.readPackedInt32((RepeatedInt) getObject(message, entry));
+                    break;
+                case PACKED_FIXED64:
+                    input.readPackedFixed64((RepeatedLong) getObject(message, entry));
+                    break;
+                case PACKED_FIXED32:
+                    input.readPackedFixed32((RepeatedInt) getObject(message, entry));
+                    break;
+                case PACKED_BOOL:
+                    input.readPackedBool((RepeatedBoolean) getObject(message, entry));
+                    break;
+                case PACKED_UINT32:
+                    input.readPackedUInt32((RepeatedInt) getObject(message, entry));
+                    break;
+                case PACKED_SFIXED32:
+                    input.readPackedSFixed32((RepeatedInt) getObject(message, entry));
+                    break;
+                case PACKED_SFIXED64:
+                    input.readPackedSFixed64((RepeatedLong) getObject(message, entry));
+                    break;
+                case PACKED_SINT32:
+                    input.readPackedSInt32((RepeatedInt) getObject(message, entry));
+                    break;
+                case PACKED_SINT64:
+                    input.readPackedSInt64((RepeatedLong) getObject(message, entry));
+                    break;
+
+                default:
+                    // custom fields take care of their own has state
+                    message.mergeCustomField(tag, input);
+                    continue;
+            }
+            setHasBit(message, entry);
+        }
+    }
+
+    /**
+     * @return the number of entries, i.e., the number of tags that are known to this table
+     */
+    public int size() {
+        return tags.length;
+    }
+
+    private int findEntry(final int tag) {
+        if (lookup != null) {
+            return tag > 0 && tag < lookup.length ? lookup[tag] : -1;
+        }
+        final int index = Arrays.binarySearch(sortedTags, tag);
+        return index >= 0 ? sortedEntries[index] : -1;
+    }
+
+    // ---------------- Member access ----------------
+
+    private void setHasBit(final Object message, final int entry) {
+        if (USE_UNSAFE) {
+            final long offset = hasOffsets[entry];
+            UnsafeAccess.putInt(message, offset, UnsafeAccess.getInt(message, offset) | hasMasks[entry]);
+        } else {
+            try {
+                final Field field = hasFields[entry];
+                field.setInt(message, field.getInt(message) | hasMasks[entry]);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private void putInt(final Object message, final int entry, final int value) {
+        if (USE_UNSAFE) {
+            UnsafeAccess.putInt(message, offsets[entry], value);
+        } else {
+            try {
+                fields[entry].setInt(message, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private void putLong(final Object message, final int entry, final long value) {
+        if (USE_UNSAFE) {
+            UnsafeAccess.putLong(message, offsets[entry], value);
+        } else {
+            try {
+                fields[entry].setLong(message, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private void putFloat(final Object message, final int entry, final float value) {
+        if (USE_UNSAFE) {
+            UnsafeAccess.putFloat(message, offsets[entry], value);
+        } else {
+            try {
+                fields[entry].setFloat(message, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private void putDouble(final Object message, final int entry, final double value) {
+        if (USE_UNSAFE) {
+            UnsafeAccess.putDouble(message, offsets[entry], value);
+        } else {
+            try {
+                fields[entry].setDouble(message, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private void putBoolean(final Object message, final int entry, final boolean value) {
+        if (USE_UNSAFE) {
+            UnsafeAccess.putBoolean(message, offsets[entry], value);
+        } else {
+            try {
+                fields[entry].setBoolean(message, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private void putObject(final Object message, final int entry, final Object value) {
+        if (USE_UNSAFE) {
+            UnsafeAccess.putObject(message, offsets[entry], value);
+        } else {
+            try {
+                fields[entry].set(message, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private Object getObject(final Object message, final int entry) {
+        if (USE_UNSAFE) {
+            return UnsafeAccess.getObject(message, offsets[entry]);
+        } else {
+            try {
+                return fields[entry].get(message);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    public static final class Builder {
+
+        /**
+         * Adds a field that gets stored in a member of the message
+         *
+         * @param tag         the tag of the field, i.e., the packed tag for packed kinds
+         * @param kind        one of the kinds above, optionally combined with {@link #MASKABLE}
+         * @param memberName  the name of the member that stores the value
+         * @param hasBitIndex the index of the has bit, i.e., bit {@code hasBitIndex % 32} of
+         *                    the member {@code bitField<hasBitIndex / 32>_}
+         * @return this
+         */
+        public Builder add(final int tag, final int kind, final String memberName, final int hasBitIndex) {
+            final int type = kind & ~MASKABLE;
+            if (type < DOUBLE || type >= CUSTOM) {
+                throw new IllegalArgumentException("Invalid kind for a member field: " + kind);
+            }
+            if (hasBitIndex < 0) {
+                throw new IllegalArgumentException("Has bit index must not be negative: " + hasBitIndex);
+            }
+            final Field field = findMember(memberName);
+            final Field hasField = findMember("bitField" + (hasBitIndex >>> 5) + "_");
+            checkMember(field, getMemberType(type), type <= BYTES);
+            checkMember(hasField, int.class, true);
+            return addEntry(tag, kind, field, hasField, 1 << hasBitIndex);
+        }
+
+        /**
+         * Adds a field that gets merged by {@link ProtoMessage#mergeCustomField(int, ProtoSource)}
+         *
+         * @param tag  the tag of the field
+         * @param kind {@link #CUSTOM}, optionally combined with {@link #MASKABLE}
+         * @return this
+         */
+        public Builder add(final int tag, final int kind) {
+            if ((kind & ~MASKABLE) != CUSTOM) {
+                throw new IllegalArgumentException("Fields without a member need to be CUSTOM: " + kind);
+            }
+            return addEntry(tag, kind, null, null, 0);
+        }
+
+        public FieldTable build() {
+            return new FieldTable(this);
+        }
+
+        private Builder addEntry(final int tag, final int kind, final Field field, final Field hasField, final int hasMask) {
+            if (tag == 0 || (tag & 0x7) > WireFormat.WIRETYPE_FIXED32) {
+                throw new IllegalArgumentException("Invalid tag: " + tag);
+            }
+            if (tags.contains(tag)) {
+                throw new IllegalArgumentException("Duplicate tag: " + tag);
+            }
+            tags.add(tag);
+            kinds.add(kind);
+            fields.add(field);
+            hasFields.add(hasField);
+            hasMasks.add(hasMask);
+            return this;
+        }
+
+        private Field findMember(final String name) {
+            for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+                try {
+                    final Field field = clazz.getDeclaredField(name);
+                    if (!USE_UNSAFE) {
+                        field.setAccessible(true);
+                    }
+                    return field;
+                } catch (NoSuchFieldException e) {
+                    // check the parent class
+                }
+            }
+            throw new IllegalArgumentException(type.getName() + " has no member named " + name);
+        }
+
+        /**
+         * Members get accessed without any type checks if Unsafe is available, so they
+         * need to match the kind. Kinds that store a new value need to be able to assign
+         * the member, and all other kinds need to be able to cast the existing value.
+         */
+        private static void checkMember(final Field field, final Class<?> memberType, final boolean assigned) {
+            final int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers)) {
+                throw new IllegalArgumentException(field + " must not be static");
+            }
+            if (assigned && Modifier.isFinal(modifiers)) {
+                throw new IllegalArgumentException(field + " must not be final");
+            }
+            final boolean compatible = assigned ?
+                    field.getType().isAssignableFrom(memberType) :
+                    memberType.isAssignableFrom(field.getType());
+            if (!compatible) {
+                throw new IllegalArgumentException(field + " does not match the expected type " + memberType.getTypeName());
+            }
+        }
+
+        private static Class<?> getMemberType(final int type) {
+            switch (type) {
+                case DOUBLE:
+                    return double.class;
+                case FLOAT:
+                    return float.class;
+                case INT64:
+                case UINT64:
+                case FIXED64:
+                case SFIXED64:
+                case SINT64:
+                    return long.class;
+                case INT32:
+                case FIXED32:
+                case UINT32:
+                case SFIXED32:
+                case SINT32:
+                    return int.class;
+                case BOOL:
+                    return boolean.class;
+
+                case STRING:
+                case INTERNED_STRING:
+                    return String.class;
+                case BYTES:
+                    return byte[].class;
+                case UTF8_STRING:
+                    return Utf8String.class;
+                case BYTE_SLICE:
+                    return ByteSlice.class;
+
+                case REPEATED_DOUBLE:
+                case PACKED_DOUBLE:
+                    return RepeatedDouble.class;
+                case REPEATED_FLOAT:
+                case PACKED_FLOAT:
+                    return RepeatedFloat.class;
+                case REPEATED_INT64:
+                case REPEATED_UINT64:
+                case REPEATED_FIXED64:
+                case REPEATED_SFIXED64:
+                case REPEATED_SINT64:
+                case PACKED_INT64:
+                case PACKED_UINT64:
+                case PACKED_FIXED64:
+                case PACKED_SFIXED64:
+                case PACKED_SINT64:
+                    return RepeatedLong.class;
+                case REPEATED_INT32:
+                case REPEATED_FIXED32:
+                case REPEATED_UINT32:
+                case REPEATED_SFIXED32:
+                case REPEATED_SINT32:
+                case PACKED_INT32:
+                case PACKED_FIXED32:
+                case PACKED_UINT32:
+                case PACKED_SFIXED32:
+                case PACKED_SINT32:
+                    return RepeatedInt.class;
+                case REPEATED_BOOL:
+                case PACKED_BOOL:
+                    return RepeatedBoolean.class;
+
+                default:
+                    throw new IllegalArgumentException("Invalid kind for a member field: " + type);
+            }
+        }
+
+        private Builder(final Class<? extends ProtoMessage> type) {
+            this.type = type;
+        }
+
+        final Class<? extends ProtoMessage> type;
+        final List<Integer> tags = new ArrayList<>();
+        final List<Integer> kinds = new ArrayList<>();
+        final List<Field> fields = new ArrayList<>();
+        final List<Field> hasFields = new ArrayList<>();
+        final List<Integer> hasMasks = new ArrayList<>();
+
+    }
+
+    private FieldTable(final Builder builder) {
+        final int n = builder.tags.size();
+        tags = new int[n];
+        kinds = new int[n];
+        hasMasks = new int[n];
+        fields = builder.fields.toArray(new Field[n]);
+        hasFields = builder.hasFields.toArray(new Field[n]);
+        offsets = new long[n];
+        hasOffsets = new long[n];
+        long maxTag = 0; // tags of field numbers above 2^28 are negative
+        for (int i = 0; i < n; i++) {
+            tags[i] = builder.tags.get(i);
+            kinds[i] = builder.kinds.get(i);
+            hasMasks[i] = builder.hasMasks.get(i);
+            if (USE_UNSAFE && fields[i] != null) {
+                offsets[i] = UnsafeAccess.objectFieldOffset(fields[i]);
+                hasOffsets[i] = UnsafeAccess.objectFieldOffset(hasFields[i]);
+            }
+            maxTag = Math.max(maxTag, Integer.toUnsignedLong(tags[i]));
+        }
+
+        // Tags of messages with dense field numbers map directly to the
+        // entry. Sparse ones get looked up by a binary search.
+        if (maxTag < Math.max(MIN_LOOKUP_SIZE, LOOKUP_SIZE_PER_ENTRY * n)) {
+            lookup = new int[(int) maxTag + 1];
+            Arrays.fill(lookup, -1);
+            for (int i = 0; i < n; i++) {
+                lookup[tags[i]] = i;
+            }
+            sortedTags = null;
+            sortedEntries = null;
+        } else {
+            lookup = null;
+            final long[] pairs = new long[n];
+            for (int i = 0; i < n; i++) {
+                pairs[i] = ((long) tags[i] << 32) | i;
+            }
+            Arrays.sort(pairs);
+            sortedTags = new int[n];
+            sortedEntries = new int[n];
+            for (int i = 0; i < n; i++) {
+                sortedTags[i] = (int) (pairs[i] >>> 32);
+                sortedEntries[i] = (int) pairs[i];
+            }
+        }
+    }
+
+    private static final boolean USE_UNSAFE = UnsafeAccess.isAvailable();
+    private static final int MIN_LOOKUP_SIZE = 1024;
+    private static final int LOOKUP_SIZE_PER_ENTRY = 16;
+
+    private final int[] tags;
+    private final int[] kinds;
+    private final int[] hasMasks;
+    private final long[] offsets;
+    private final long[] hasOffsets;
+    private final Field[] fields;
+    private final Field[] hasFields;
+
+    private final int[] lookup;
+    private final int[] sortedTags;
+    private final int[] sortedEntries;
+
+}
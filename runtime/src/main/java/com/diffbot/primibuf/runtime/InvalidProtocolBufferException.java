@@ -111,7 +111,11 @@ public class InvalidProtocolBufferException extends com.google.protobuf.InvalidP
                         "Use CodedInputStream.setSizeLimit() to increase the size limit.");
     }
 
-    static com.google.protobuf.InvalidProtocolBufferException invalidUtf8() {
-        return new com.google.protobuf.InvalidProtocolBufferException("Protocol message had invalid UTF-8.");
+    static InvalidProtocolBufferException parseFailure() {
+        return new InvalidProtocolBufferException("Failed to parse the message.");
+    }
+
+    static InvalidProtocolBufferException invalidUtf8() {
+        return new InvalidProtocolBufferException("Protocol message had invalid UTF-8.");
     }
 }
@@ -0,0 +1,226 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.runtime;
+
+import java.io.IOException;
+
+/**
+ * Storage for message fields that only records the encoded bytes during
+ * {@link ProtoMessage#mergeFrom(ProtoSource)} and decodes them on first
+ * access. Sub-trees that never get read thus never have to be parsed.
+ * <p>
+ * When decoding from an array backed {@link ProtoSource} the bytes are not
+ * copied, i.e., this is a view into the input buffer. The contents are only
+ * valid for as long as the input buffer does not get modified, so any field
+ * that is still of interest needs to be accessed before the buffer gets reused.
+ * Other sources copy the bytes into internal storage that gets reused.
+ */
+public final class LazyMessage<MessageType extends ProtoMessage<MessageType>> {
+
+    public static <T extends ProtoMessage<T>> LazyMessage<T> newInstance(MessageFactory<T> factory) {
+        return new LazyMessage<>(factory);
+    }
+
+    private LazyMessage(MessageFactory<MessageType> factory) {
+        if (factory == null) throw new NullPointerException();
+        this.factory = factory;
+    }
+
+    /**
+     * Decodes any pending bytes and returns the message
+     *
+     * @throws IllegalStateException if the bytes can't be parsed. Use {@link #parse()}
+     *                               to handle the checked exception instead.
+     */
+    public MessageType get() {
+        try {
+            return parse();
+        } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException("Failed to parse lazy message", e);
+        }
+    }
+
+    /**
+     * Decodes any pending bytes and returns the message
+     *
+     * @throws InvalidProtocolBufferException if the bytes can't be parsed
+     */
+    public MessageType parse() throws InvalidProtocolBufferException {
+        flushPending();
+        if (message == null) {
+            message = factory.create();
+        }
+        inUse = true;
+        return message;
+    }
+
+    /**
+     * @return true if there are no bytes that still need to be decoded
+     */
+    public boolean isParsed() {
+        return !pending;
+    }
+
+    /**
+     * Drops any pending bytes. A previously decoded message gets cleared
+     * and kept for reuse.
+     */
+    public LazyMessage<MessageType> clear() {
+        if (message != null) {
+            message.clear();
+        }
+        inUse = false;
+        pending = false;
+        setRange(ProtoUtil.EMPTY_BYTE_ARRAY, 0, 0);
+        return this;
+    }
+
+    /**
+     * Copies the contents of another instance. Bytes that have not been parsed yet
+     * get copied into internal storage, so they don't get decoded and re-encoded.
+     *
+     * @return this
+     */
+    public LazyMessage<MessageType> copyFrom(LazyMessage<MessageType> other) {
+        if (other == this) {
+            return this;
+        }
+        clear();
+        if (other.isRawBytes()) {
+            if (storage.length < other.length) {
+                storage = new byte[other.length];
+            }
+            System.arraycopy(other.bytes, other.offset, storage, 0, other.length);
+            setRange(storage, 0, other.length);
+            pending = true;
+        } else {
+            get().copyFrom(other.get());
+        }
+        return this;
+    }
+
+    /**
+     * Merges the contents of another instance. Unparsed bytes only get
+     * copied without being parsed if this instance is empty.
+     *
+     * @return this
+     */
+    public LazyMessage<MessageType> mergeFrom(LazyMessage<MessageType> other) {
+        if (!pending && !inUse) {
+            return copyFrom(other);
+        }
+        get().mergeFrom(other.get());
+        return this;
+    }
+
+    /**
+     * Records the encoded bytes of another occurrence of this field. Repeated
+     * occurrences get merged, so previously recorded bytes need to be decoded
+     * first in order to maintain the order.
+     */
+    void setView(byte[] bytes, int offset, int length) throws InvalidProtocolBufferException {
+        flushPending();
+        setRange(bytes, offset, length);
+        pending = true;
+    }
+
+    /**
+     * @return internal storage that can hold at least the specified number of bytes
+     */
+    byte[] reserveStorage(int size) throws InvalidProtocolBufferException {
+        // pending bytes may live in the storage that is about to be overwritten
+        flushPending();
+        if (storage.length < size) {
+            storage = new byte[size];
+        }
+        return storage;
+    }
+
+    /**
+     * Messages that have not been accessed since they were recorded consist of the
+     * original bytes, which can be written without being parsed.
+     */
+    private boolean isRawBytes() {
+        return pending && !inUse;
+    }
+
+    int getSerializedSize() {
+        return isRawBytes() ? length : get().getSerializedSize();
+    }
+
+    int getCachedSize() {
+        return isRawBytes() ? length : get().getCachedSize();
+    }
+
+    void writeTo(ProtoSink output) throws IOException {
+        if (isRawBytes()) {
+            output.writeRawBytes(bytes, offset, length);
+        } else {
+            get().writeTo(output);
+        }
+    }
+
+    private void flushPending() throws InvalidProtocolBufferException {
+        if (pending) {
+            pending = false;
+            if (message == null) {
+                message = factory.create();
+            }
+            inUse = true;
+            ProtoMessage.mergeFrom(message, bytes, offset, length);
+        }
+    }
+
+    private void setRange(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        return get().equals(((LazyMessage<?>) o).get());
+    }
+
+    @Override
+    public int hashCode() {
+        return get().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(get());
+    }
+
+    private final MessageFactory<MessageType> factory;
+    private MessageType message = null;
+    private boolean pending = false;
+    private boolean inUse = false; // message may contain data that is not in the recorded bytes
+    private byte[] bytes = ProtoUtil.EMPTY_BYTE_ARRAY;
+    private int offset = 0;
+    private int length = 0;
+    private byte[] storage = ProtoUtil.EMPTY_BYTE_ARRAY;
+
+}
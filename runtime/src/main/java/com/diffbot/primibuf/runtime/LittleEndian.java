@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.runtime;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Bulk conversions between little-endian encoded bytes and primitive arrays, e.g.,
+ * for packed fixed-width fields. On little-endian platforms the data gets copied
+ * as raw memory. Other platforms fall back to a byte-swapping {@link ByteBuffer} view.
+ * Bounds need to be checked by the caller.
+ */
+final class LittleEndian {
+
+    static void copyInts(final byte[] src, final int srcPos, final int[] dst, final int dstPos, final int count) {
+        if (RAW_COPY) {
+            UnsafeAccess.copyMemory(src, UnsafeAccess.BYTE_ARRAY_OFFSET + srcPos,
+                    dst, UnsafeAccess.INT_ARRAY_OFFSET + 4L * dstPos, 4L * count);
+        } else {
+            view(src, srcPos, 4 * count).asIntBuffer().get(dst, dstPos, count);
+        }
+    }
+
+    static void copyLongs(final byte[] src, final int srcPos, final long[] dst, final int dstPos, final int count) {
+        if (RAW_COPY) {
+            UnsafeAccess.copyMemory(src, UnsafeAccess.BYTE_ARRAY_OFFSET + srcPos,
+                    dst, UnsafeAccess.LONG_ARRAY_OFFSET + 8L * dstPos, 8L * count);
+        } else {
+            view(src, srcPos, 8 * count).asLongBuffer().get(dst, dstPos, count);
+        }
+    }
+
+    static void copyFloats(final byte[] src, final int srcPos, final float[] dst, final int dstPos, final int count) {
+        if (RAW_COPY) {
+            UnsafeAccess.copyMemory(src, UnsafeAccess.BYTE_ARRAY_OFFSET + srcPos,
+                    dst, UnsafeAccess.FLOAT_ARRAY_OFFSET + 4L * dstPos, 4L * count);
+        } else {
+            view(src, srcPos, 4 * count).asFloatBuffer().get(dst, dstPos, count);
+        }
+    }
+
+    static void copyDoubles(final byte[] src, final int srcPos, final double[] dst, final int dstPos, final int count) {
+        if (RAW_COPY) {
+            UnsafeAccess.copyMemory(src, UnsafeAccess.BYTE_ARRAY_OFFSET + srcPos,
+                    dst, UnsafeAccess.DOUBLE_ARRAY_OFFSET + 8L * dstPos, 8L * count);
+        } else {
+            view(src, srcPos, 8 * count).asDoubleBuffer().get(dst, dstPos, count);
+        }
+    }
+
+    static void copyInts(final int[] src, final int srcPos, final byte[] dst, final int dstPos, final int count) {
+        if (RAW_COPY) {
+            UnsafeAccess.copyMemory(src, UnsafeAccess.INT_ARRAY_OFFSET + 4L * srcPos,
+                    dst, UnsafeAccess.BYTE_ARRAY_OFFSET + dstPos, 4L * count);
+        } else {
+            view(dst, dstPos, 4 * count).asIntBuffer().put(src, srcPos, count);
+        }
+    }
+
+    static void copyLongs(final long[] src, final int srcPos, final byte[] dst, final int dstPos, final int count) {
+        if (RAW_COPY) {
+            UnsafeAccess.copyMemory(src, UnsafeAccess.LONG_ARRAY_OFFSET + 8L * srcPos,
+                    dst, UnsafeAccess.BYTE_ARRAY_OFFSET + dstPos, 8L * count);
+        } else {
+            view(dst, dstPos, 8 * count).asLongBuffer().put(src, srcPos, count);
+        }
+    }
+
+    static void copyFloats(final float[] src, final int srcPos, final byte[] dst, final int dstPos, final int count) {
+        if (RAW_COPY) {
+            UnsafeAccess.copyMemory(src, UnsafeAccess.FLOAT_ARRAY_OFFSET + 4L * srcPos,
+                    dst, UnsafeAccess.BYTE_ARRAY_OFFSET + dstPos, 4L * count);
+        } else {
+            view(dst, dstPos, 4 * count).asFloatBuffer().put(src, srcPos, count);
+        }
+    }
+
+    static void copyDoubles(final double[] src, final int srcPos, final byte[] dst, final int dstPos, final int count) {
+        if (RAW_COPY) {
+            UnsafeAccess.copyMemory(src, UnsafeAccess.DOUBLE_ARRAY_OFFSET + 8L * srcPos,
+                    dst, UnsafeAccess.BYTE_ARRAY_OFFSET + dstPos, 8L * count);
+        } else {
+            view(dst, dstPos, 8 * count).asDoubleBuffer().put(src, srcPos, count);
+        }
+    }
+
+    private static ByteBuffer view(final byte[] src, final int srcPos, final int length) {
+        return ByteBuffer.wrap(src, srcPos, length).slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private LittleEndian() {
+    }
+
+    private static final boolean RAW_COPY = UnsafeAccess.isAvailable() && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+}
@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.runtime;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static com.diffbot.primibuf.runtime.InvalidProtocolBufferException.*;
+import static com.diffbot.primibuf.runtime.WireFormat.*;
+
+/**
+ * Reads files of length-delimited messages (a varint length prefix followed by
+ * the message bytes, e.g., written by protobuf-java's {@code writeDelimitedTo})
+ * by memory-mapping the file and decoding every record in place. The data never
+ * gets copied onto the heap, so cold-loading runs at page-cache speed.
+ * <p>
+ * A single mapping is limited to 2 GB, so larger files are read through multiple
+ * mappings. A new mapping always starts at the beginning of a record, so a record
+ * never spans two mappings.
+ * <p>
+ * This class is not thread-safe.
+ */
+public final class MappedFileReader implements Closeable {
+
+    public static MappedFileReader open(final Path file) throws IOException {
+        return new MappedFileReader(FileChannel.open(file, StandardOpenOption.READ), MAX_MAPPING_SIZE);
+    }
+
+    MappedFileReader(final FileChannel channel, final int maxMappingSize) throws IOException {
+        this.channel = channel;
+        this.fileSize = channel.size();
+        this.maxMappingSize = maxMappingSize;
+        map(0);
+    }
+
+    /**
+     * Merges the next record into the message.
+     *
+     * @param message message that the record gets merged into
+     * @return false if there are no more records
+     */
+    public boolean readNext(final ProtoMessage message) throws IOException {
+        final long recordStart = getPosition();
+        if (recordStart >= fileSize) {
+            return false;
+        }
+
+        // Make sure that the entire record is contained in the current mapping
+        int length = readLength(recordStart);
+        if (length > source.remaining()) {
+            if (mappingEnd() == fileSize) {
+                throw truncatedMessage();
+            }
+            map(recordStart);
+            length = readLength(recordStart);
+            if (length > source.remaining()) {
+                throw sizeLimitExceeded();
+            }
+        }
+
+        final int oldLimit = source.pushLimit(length);
+        message.mergeFrom(source);
+        source.checkLastTagWas(0);
+        source.popLimit(oldLimit);
+        return true;
+    }
+
+    /**
+     * Skips the next record without decoding it. Only the length prefix gets
+     * read, so the pages of large payloads never need to be touched.
+     *
+     * @return false if there are no more records
+     */
+    public boolean skipNext() throws IOException {
+        final long recordStart = getPosition();
+        if (recordStart >= fileSize) {
+            return false;
+        }
+
+        final int length = readLength(recordStart);
+        final long recordEnd = getPosition() + length;
+        if (recordEnd > fileSize) {
+            throw truncatedMessage();
+        }
+        if (recordEnd <= mappingEnd()) {
+            source.skipRawBytes(length);
+        } else {
+            map(recordEnd);
+        }
+        return true;
+    }
+
+    /**
+     * Moves to the record that starts at the specified file offset, e.g.,
+     * an offset that was looked up in a {@link RecordIndex}. Offsets within
+     * the current mapping don't require a new mapping.
+     *
+     * @param position file offset of the length prefix of a record
+     */
+    public void seek(final long position) throws IOException {
+        if (position < 0 || position > fileSize) {
+            throw new IllegalArgumentException("Position " + position + " is outside of the file (size " + fileSize + ")");
+        }
+        final long mappingEnd = mappingEnd();
+        if (position < mappingStart || position >= mappingEnd) {
+            map(position);
+            return;
+        }
+        source.resetInternalState(0, (int) (mappingEnd - mappingStart));
+        source.skipRawBytes((int) (position - mappingStart));
+    }
+
+    /**
+     * @return size of the file in bytes
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return file offset of the next record
+     */
+    public long getPosition() {
+        return mappingStart + source.getPosition();
+    }
+
+    private int readLength(final long recordStart) throws IOException {
+        if (source.remaining() < MAX_VARINT32_SIZE && mappingEnd() < fileSize) {
+            map(recordStart);
+        }
+        final int length = source.readRawVarint32();
+        if (length < 0) {
+            throw negativeSize();
+        }
+        return length;
+    }
+
+    private void map(final long position) throws IOException {
+        final long size = Math.min(maxMappingSize, fileSize - position);
+        final MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        source = ProtoSource.newInstance(mapping);
+        mappingStart = position;
+    }
+
+    private long mappingEnd() {
+        return mappingStart + source.limit - source.startPos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static final int MAX_MAPPING_SIZE = Integer.MAX_VALUE;
+
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int maxMappingSize;
+    private long mappingStart;
+    private ProtoSource source;
+
+}
@@ -39,14 +39,123 @@ public abstract class ProtoMessage<MessageType extends ProtoMessage> {
     // is likely in the same cache line as the object header
     protected int bitField0_;
 
+    protected int cachedSize = -1;
+
+    // Frozen messages are expected to not be modified, so the hash code
+    // can be computed once. Generated clear() methods unfreeze the message.
+    protected boolean frozen = false;
+    private int cachedHashCode;
+    private boolean immutable = false;
+
     protected ProtoMessage() {}
 
+    /**
+     * Get the number of bytes required to encode this message.
+     * Returns the cached size or calls getSerializedSize which
+     * sets the cached value. This is used internally when serializing
+     * so the size is only computed once. If a member is modified
+     * then this could be stale call getSerializedSize if in doubt.
+     */
+    public int getCachedSize() {
+        if (cachedSize < 0) {
+            // getSerializedSize sets cachedSize
+            getSerializedSize();
+        }
+        return cachedSize;
+    }
+
+    /**
+     * Computes the number of bytes required to encode this message.
+     * The size is cached and the cached result can be retrieved
+     * using getCachedSize().
+     */
+    public int getSerializedSize() {
+        int size = computeSerializedSize();
+        cachedSize = size;
+        return size;
+    }
+
+    /**
+     * Computes the number of bytes required to encode this message. This does
+     * not update the cached size.
+     */
+    protected abstract int computeSerializedSize();
+
+    /**
+     * Serializes the message and writes it to {@code output}. This does not
+     * write any framing information, i.e., the caller is responsible for
+     * writing a tag and length prefix if needed.
+     */
+    public abstract void writeTo(ProtoSink output) throws IOException;
+
+    /**
+     * Serializes the message with a leading varint length, i.e., in the format that
+     * is expected by length-delimited readers. The size gets computed once and is
+     * reused by {@link #writeTo(ProtoSink)}, so the message does not get encoded twice.
+     */
+    public final void writeDelimitedTo(final ProtoSink output) throws IOException {
+        output.writeRawVarint32(getSerializedSize());
+        writeTo(output);
+    }
+
+    /**
+     * Serialize to a byte array.
+     *
+     * @return byte array with the serialized data.
+     */
+    public final byte[] toByteArray() {
+        final byte[] result = new byte[getSerializedSize()];
+        toByteArray(this, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Serialize to a byte array starting at offset through length. The
+     * method getSerializedSize must have been called prior to calling
+     * this method so the proper length is know.  If an attempt to
+     * write more than length bytes OutOfSpaceException will be thrown
+     * and if length bytes are not written then IllegalStateException
+     * is thrown.
+     */
+    public static final void toByteArray(ProtoMessage msg, byte[] data, int offset, int length) {
+        try {
+            final ProtoSink output = ProtoSink.newInstance(data, offset, length);
+            msg.writeTo(output);
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new RuntimeException("Serializing to a byte array threw an IOException "
+                    + "(should never happen).", e);
+        }
+    }
+
     /**
      * Parse {@code input} as a message of this type and merge it with the
      * message being built.
      */
     public abstract ProtoMessage mergeFrom(ProtoSource input) throws IOException;
 
+    /**
+     * Merges a field that is marked as {@link FieldTable#CUSTOM} in the field table
+     * of a message that was generated in table-driven mode. Other messages never
+     * get called.
+     *
+     * @param tag   the tag that was read last
+     * @param input the source positioned after the tag
+     */
+    protected void mergeCustomField(final int tag, final ProtoSource input) throws IOException {
+        throw new IllegalStateException("Unexpected custom field with tag " + tag);
+    }
+
+    /**
+     * Resets all fields to their default values. Nested messages and repeated
+     * stores get cleared rather than released, so a message that gets cleared
+     * and parsed into repeatedly does not allocate once its capacity has grown
+     * to fit the data.
+     *
+     * @return this
+     */
+    public abstract MessageType clear();
+
     /**
      * Merge {@code other} into the message being built. {@code other} must have the exact same type
      * as {@code this}.
@@ -64,9 +173,16 @@ public abstract class ProtoMessage<MessageType extends ProtoMessage> {
      *
      * <p>This is equivalent to the {@code Message::MergeFrom} method in C++.
      */
-    public MessageType mergeFrom(MessageType other) {
-        throw new RuntimeException("MergeFrom method not generated");
-    }
+    public abstract MessageType mergeFrom(MessageType other);
+
+    /**
+     * Copies all fields and the has state of {@code other} into this message, so that
+     * the result is equal to {@code other}. The values get copied field by field without
+     * serializing, and existing nested messages and repeated stores get reused.
+     *
+     * @return this
+     */
+    public abstract MessageType copyFrom(MessageType other);
 
     /**
      * Parse {@code data} as a message of this type and merge it with the
@@ -96,6 +212,18 @@ public abstract class ProtoMessage<MessageType extends ProtoMessage> {
         }
     }
 
+    /**
+     * Parse all remaining data in {@code input} as a message of this type and
+     * merge it with the message being built. The source is owned by the caller
+     * and may be reused across calls, e.g., via {@link ProtoSource#setInput(byte[])},
+     * so that parsing does not need to allocate a new decoder.
+     */
+    public static final <T extends ProtoMessage> T mergeFrom(T msg, final ProtoSource input) throws IOException {
+        msg.mergeFrom(input);
+        input.checkLastTagWas(0);
+        return msg;
+    }
+
     /**
      * Indicates whether another object is "equal to" this one.
      * <p>
@@ -114,14 +242,72 @@ public abstract class ProtoMessage<MessageType extends ProtoMessage> {
     public abstract boolean equals(Object obj);
 
     /**
-     * Messages have no immutable state and should not
-     * be used in hashing structures. This implementation
-     * returns a constant value in order to satisfy the
-     * contract.
+     * Returns a hash code that is consistent with {@link #equals(Object)}, i.e., it
+     * is based on the has state and the contents of all fields that are set.
+     * <p>
+     * Messages are mutable, so modifying a message that is stored in a hashing
+     * structure breaks the structure. Messages that are not going to be modified
+     * anymore can be marked using {@link #freeze()}, which computes the hash code
+     * once and memoizes it.
      */
     @Override
     public final int hashCode() {
-        return 0;
+        return frozen ? cachedHashCode : computeHashCode();
+    }
+
+    /**
+     * Computes the hash code of the has state and the contents of all fields
+     * that are set. This does not use the memoized value.
+     */
+    protected abstract int computeHashCode();
+
+    /**
+     * Marks the message as not being modified anymore and memoizes the hash
+     * code. This is not enforced, so modifying a frozen message results in a
+     * stale hash code. Calling {@code clear()} unfreezes the message.
+     *
+     * @return this
+     */
+    @SuppressWarnings("unchecked")
+    public final MessageType freeze() {
+        cachedHashCode = computeHashCode();
+        frozen = true;
+        return (MessageType) this;
+    }
+
+    /**
+     * @return true if the message has been marked using {@link #freeze()}
+     */
+    public final boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Marks the message as immutable, so that generated methods that modify it
+     * throw an {@link UnsupportedOperationException}. This is used for the shared
+     * default instances that get returned by the getters of absent fields, and it
+     * can't be undone. Nested fields are checked by the generated methods of the
+     * containing message, so only the outermost message needs to be marked.
+     *
+     * @return this
+     */
+    @SuppressWarnings("unchecked")
+    public final MessageType makeImmutable() {
+        immutable = true;
+        return (MessageType) this;
+    }
+
+    /**
+     * @return true if the message has been marked using {@link #makeImmutable()}
+     */
+    public final boolean isImmutable() {
+        return immutable;
+    }
+
+    protected final void checkMutable() {
+        if (immutable) {
+            throw new UnsupportedOperationException("Shared default instances can't be modified. Use getMutableXxx() instead.");
+        }
     }
 
     /**
@@ -0,0 +1,1127 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+// Protocol Buffers - Google's data interchange format
+// Copyright 2013 Google Inc.  All rights reserved.
+// https://developers.google.com/protocol-buffers/
+//
+// Redistribution and use in source and binary forms, with or without
+// modification, are permitted provided that the following conditions are
+// met:
+//
+//     * Redistributions of source code must retain the above copyright
+// notice, this list of conditions and the following disclaimer.
+//     * Redistributions in binary form must reproduce the above
+// copyright notice, this list of conditions and the following disclaimer
+// in the documentation and/or other materials provided with the
+// distribution.
+//     * Neither the name of Google Inc. nor the names of its
+// contributors may be used to endorse or promote products derived from
+// this software without specific prior written permission.
+//
+// THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+// "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+// LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+// A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT
+// OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+// SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+// LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+// DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+// THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+// (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+// OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+package com.diffbot.primibuf.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static com.diffbot.primibuf.runtime.WireFormat.*;
+import static com.google.protobuf.CodedOutputStream.encodeZigZag32;
+import static com.google.protobuf.CodedOutputStream.encodeZigZag64;
+
+/**
+ * NOTE: the code was modified from {@link com.google.protobuf.CodedOutputStream} (ArrayEncoder) with the following
+ * modifications:
+ *
+ * 1. write the primitive arrays of repeated and packed fields in bulk, e.g., {@link #writePackedDouble}
+ * 2. nested messages get written with the size that was cached by {@link ProtoMessage#getSerializedSize()}
+ * 3. no extends from CodedOutputStream, fix compilation due to private/package-level fields/methods
+ * 4. the output can be reset and pointed at a different array so that a sink can be reused
+ * 5. raw writes can be overridden by subclasses that write to other memory, e.g., {@link ByteBufferSink}
+ *    and {@link StreamSink}
+ *
+ * The output is byte-compatible with protobuf-java, i.e., fields are written in the order of their
+ * field numbers, and unpaired surrogates in strings get replaced with '?'.
+ */
+public class ProtoSink {
+
+    /**
+     * Creates an empty sink that can be pointed at an array using
+     * {@link #setOutput(byte[], int, int)}. Reusing a sink avoids
+     * allocating a new encoder for each message.
+     */
+    public static ProtoSink newInstance() {
+        return new ProtoSink(ProtoUtil.EMPTY_BYTE_ARRAY, 0, 0);
+    }
+
+    /**
+     * Creates a sink that writes to the entire array
+     */
+    public static ProtoSink newInstance(final byte[] buffer) {
+        return new ProtoSink(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Creates a sink that writes to the specified range of the array
+     */
+    public static ProtoSink newInstance(final byte[] buffer, final int offset, final int length) {
+        return new ProtoSink(buffer, offset, length);
+    }
+
+    /**
+     * Creates a sink that writes to the remaining space of the buffer, i.e., between
+     * position and limit. Buffers with an accessible backing array are written to the
+     * array directly, while all other buffers (e.g. direct buffers) are written through
+     * the {@link ByteBuffer} API.
+     * <p>
+     * The position and limit of the passed in buffer are not modified.
+     */
+    public static ProtoSink newInstance(final ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new ProtoSink(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return new ByteBufferSink(buffer);
+    }
+
+    /**
+     * Creates a sink that writes to a stream through a reusable buffer
+     * with a default size of 4 KB
+     */
+    public static StreamSink newInstance(final OutputStream output) {
+        return new StreamSink(output, null, StreamSink.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a sink that writes to a stream through a reusable buffer
+     * of the specified size
+     */
+    public static StreamSink newInstance(final OutputStream output, final int bufferSize) {
+        return new StreamSink(output, null, bufferSize);
+    }
+
+    /**
+     * Creates a sink that writes to a channel through a reusable buffer
+     * with a default size of 4 KB
+     */
+    public static StreamSink newInstance(final WritableByteChannel channel) {
+        return new StreamSink(null, channel, StreamSink.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a sink that writes to a channel through a reusable buffer
+     * of the specified size
+     */
+    public static StreamSink newInstance(final WritableByteChannel channel, final int bufferSize) {
+        return new StreamSink(null, channel, bufferSize);
+    }
+
+    ProtoSink(final byte[] buffer, final int offset, final int length) {
+        setOutput(buffer, offset, length);
+    }
+
+    /**
+     * Constructor for subclasses that are not backed by an array
+     */
+    ProtoSink() {
+        this.buffer = ProtoUtil.EMPTY_BYTE_ARRAY;
+    }
+
+    /**
+     * Changes the output to the entire array and resets the position
+     */
+    public ProtoSink setOutput(final byte[] buffer) {
+        return setOutput(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Changes the output to the specified range of the array and resets the position
+     */
+    public ProtoSink setOutput(final byte[] buffer, final int offset, final int length) {
+        if ((offset | length | (buffer.length - (offset + length))) < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Array range is invalid. Buffer.length=%d, offset=%d, length=%d", buffer.length, offset, length));
+        }
+        this.buffer = buffer;
+        this.offset = offset;
+        this.position = offset;
+        this.limit = offset + length;
+        return this;
+    }
+
+    /**
+     * Resets the position to the beginning of the output
+     */
+    public ProtoSink reset() {
+        position = offset;
+        return this;
+    }
+
+    /**
+     * @return number of bytes that have been written since the output was set
+     */
+    public int position() {
+        return position - offset;
+    }
+
+    /**
+     * If writing to a flat array, return the space left in the array.
+     * Otherwise, throws {@code UnsupportedOperationException}.
+     */
+    public int spaceLeft() {
+        return limit - position;
+    }
+
+    /**
+     * Verifies that {@link #spaceLeft()} returns zero.  It's common to create
+     * a byte array that is exactly big enough to hold a message, then write to
+     * it with a {@code ProtoSink}.  Calling {@code checkNoSpaceLeft()} after
+     * writing verifies that the message was actually as big as expected, which
+     * can help catch bugs.
+     */
+    public void checkNoSpaceLeft() {
+        if (spaceLeft() != 0) {
+            throw new IllegalStateException("Did not write as much data as expected.");
+        }
+    }
+
+    /**
+     * If you create a ProtoSink around a simple flat array, you must
+     * not attempt to write more bytes than the array has space.  Otherwise,
+     * this exception will be thrown.
+     */
+    public static class OutOfSpaceException extends IOException {
+
+        private static final long serialVersionUID = -6947486886997889499L;
+
+        OutOfSpaceException(int position, int limit) {
+            super("ProtoSink was writing to a flat byte array and ran out of space (pos " + position + " limit " + limit + ").");
+        }
+
+    }
+
+    // -----------------------------------------------------------------
+    // Scalar values without a tag. Generated code writes the tag with
+    // writeRawVarint32, which only takes a single comparison for tags
+    // that fit in a byte.
+
+    public void writeTag(final int fieldNumber, final int wireType) throws IOException {
+        writeRawVarint32(makeTag(fieldNumber, wireType));
+    }
+
+    public void writeDoubleNoTag(final double value) throws IOException {
+        writeRawLittleEndian64(Double.doubleToRawLongBits(value));
+    }
+
+    public void writeFloatNoTag(final float value) throws IOException {
+        writeRawLittleEndian32(Float.floatToRawIntBits(value));
+    }
+
+    public void writeUInt64NoTag(final long value) throws IOException {
+        writeRawVarint64(value);
+    }
+
+    public void writeInt64NoTag(final long value) throws IOException {
+        writeRawVarint64(value);
+    }
+
+    /**
+     * Negative values get sign-extended to 10 bytes for compatibility with int64
+     */
+    public void writeInt32NoTag(final int value) throws IOException {
+        if (value >= 0) {
+            writeRawVarint32(value);
+        } else {
+            writeRawVarint64(value);
+        }
+    }
+
+    public void writeFixed64NoTag(final long value) throws IOException {
+        writeRawLittleEndian64(value);
+    }
+
+    public void writeFixed32NoTag(final int value) throws IOException {
+        writeRawLittleEndian32(value);
+    }
+
+    public void writeBoolNoTag(final boolean value) throws IOException {
+        writeRawByte(value ? 1 : 0);
+    }
+
+    public void writeUInt32NoTag(final int value) throws IOException {
+        writeRawVarint32(value);
+    }
+
+    public void writeEnumNoTag(final int value) throws IOException {
+        writeInt32NoTag(value);
+    }
+
+    public void writeSFixed32NoTag(final int value) throws IOException {
+        writeRawLittleEndian32(value);
+    }
+
+    public void writeSFixed64NoTag(final long value) throws IOException {
+        writeRawLittleEndian64(value);
+    }
+
+    public void writeSInt32NoTag(final int value) throws IOException {
+        writeRawVarint32(encodeZigZag32(value));
+    }
+
+    public void writeSInt64NoTag(final long value) throws IOException {
+        writeRawVarint64(encodeZigZag64(value));
+    }
+
+    // -----------------------------------------------------------------
+    // Length delimited values without a tag
+
+    /**
+     * Encodes the string directly into the output. Strings with unpaired surrogates
+     * get replaced like {@link String#getBytes} does, which matches protobuf-java.
+     */
+    public void writeStringNoTag(final CharSequence value) throws IOException {
+        final int length = Utf8.encodedLength(value);
+        if (length < 0) {
+            writeBytesNoTag(value.toString().getBytes(ProtoUtil.Charsets.UTF_8));
+            return;
+        }
+        writeRawVarint32(length);
+        writeRawUtf8(value, length);
+    }
+
+    /**
+     * Writes the encoded bytes without decoding them
+     */
+    public void writeStringNoTag(final Utf8String value) throws IOException {
+        writeRawVarint32(value.size());
+        writeRawBytes(value.array(), value.offset(), value.size());
+    }
+
+    public void writeBytesNoTag(final byte[] value) throws IOException {
+        writeRawVarint32(value.length);
+        writeRawBytes(value, 0, value.length);
+    }
+
+    public void writeBytesNoTag(final ByteSlice value) throws IOException {
+        writeRawVarint32(value.size());
+        writeRawBytes(value.array(), value.offset(), value.size());
+    }
+
+    public void writeBytesNoTag(final RepeatedByte value) throws IOException {
+        writeRawVarint32(value.length());
+        writeRawBytes(value.array(), 0, value.length());
+    }
+
+    /**
+     * Writes the length prefix and the contents of a nested message. The length
+     * gets taken from {@link ProtoMessage#getCachedSize()}, so computing the size
+     * of the root message computes the sizes of all nested messages only once.
+     */
+    public void writeMessageNoTag(final ProtoMessage<?> value) throws IOException {
+        writeRawVarint32(value.getCachedSize());
+        value.writeTo(this);
+    }
+
+    /**
+     * Messages that have not been accessed since they were recorded get
+     * written as the original bytes without being parsed.
+     */
+    public void writeMessageNoTag(final LazyMessage<?> value) throws IOException {
+        writeRawVarint32(value.getCachedSize());
+        value.writeTo(this);
+    }
+
+    /**
+     * Writes the contents of a group and the end tag. The start tag
+     * is expected to have been written already.
+     */
+    public void writeGroupNoTag(final ProtoMessage<?> value, final int fieldNumber) throws IOException {
+        value.writeTo(this);
+        writeTag(fieldNumber, WIRETYPE_END_GROUP);
+    }
+
+    // -----------------------------------------------------------------
+    // Repeated fields of objects including the tags
+
+    public void writeRepeatedString(final int tag, final String[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeStringNoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedMessage(final int tag, final RepeatedMessage<?> values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            writeRawVarint32(tag);
+            writeMessageNoTag(values.array[i]);
+        }
+    }
+
+    public void writeRepeatedMessage(final int tag, final RepeatedLazyMessage<?> values) throws IOException {
+        for (int i = 0; i < values.length; i++) {
+            writeRawVarint32(tag);
+            writeMessageNoTag(values.array[i]);
+        }
+    }
+
+    public void writeRepeatedGroup(final int tag, final RepeatedMessage<?> values) throws IOException {
+        final int fieldNumber = getTagFieldNumber(tag);
+        for (int i = 0; i < values.length; i++) {
+            writeRawVarint32(tag);
+            writeGroupNoTag(values.array[i], fieldNumber);
+        }
+    }
+
+    public static int computeRepeatedStringSize(final int tag, final String[] values, final int length) {
+        int size = length * computeRawVarint32Size(tag);
+        for (int i = 0; i < length; i++) {
+            size += computeStringSizeNoTag(values[i]);
+        }
+        return size;
+    }
+
+    public static int computeRepeatedMessageSize(final int tag, final RepeatedMessage<?> values) {
+        int size = values.length * computeRawVarint32Size(tag);
+        for (int i = 0; i < values.length; i++) {
+            size += computeMessageSizeNoTag(values.array[i]);
+        }
+        return size;
+    }
+
+    public static int computeRepeatedMessageSize(final int tag, final RepeatedLazyMessage<?> values) {
+        int size = values.length * computeRawVarint32Size(tag);
+        for (int i = 0; i < values.length; i++) {
+            size += computeMessageSizeNoTag(values.array[i]);
+        }
+        return size;
+    }
+
+    public static int computeRepeatedGroupSize(final int tag, final RepeatedMessage<?> values) {
+        final int fieldNumber = getTagFieldNumber(tag);
+        int size = values.length * computeRawVarint32Size(tag);
+        for (int i = 0; i < values.length; i++) {
+            size += computeGroupSizeNoTag(values.array[i], fieldNumber);
+        }
+        return size;
+    }
+
+    // -----------------------------------------------------------------
+    // Sizes of values without a tag. Nested messages compute (and cache)
+    // their sizes recursively.
+
+    public static int computeDoubleSizeNoTag(final double value) {
+        return FIXED64_SIZE;
+    }
+
+    public static int computeFloatSizeNoTag(final float value) {
+        return FIXED32_SIZE;
+    }
+
+    public static int computeUInt64SizeNoTag(final long value) {
+        return computeRawVarint64Size(value);
+    }
+
+    public static int computeInt64SizeNoTag(final long value) {
+        return computeRawVarint64Size(value);
+    }
+
+    public static int computeInt32SizeNoTag(final int value) {
+        return value >= 0 ? computeRawVarint32Size(value) : MAX_VARINT64_SIZE;
+    }
+
+    public static int computeFixed64SizeNoTag(final long value) {
+        return FIXED64_SIZE;
+    }
+
+    public static int computeFixed32SizeNoTag(final int value) {
+        return FIXED32_SIZE;
+    }
+
+    public static int computeBoolSizeNoTag(final boolean value) {
+        return 1;
+    }
+
+    public static int computeUInt32SizeNoTag(final int value) {
+        return computeRawVarint32Size(value);
+    }
+
+    public static int computeEnumSizeNoTag(final int value) {
+        return computeInt32SizeNoTag(value);
+    }
+
+    public static int computeSFixed32SizeNoTag(final int value) {
+        return FIXED32_SIZE;
+    }
+
+    public static int computeSFixed64SizeNoTag(final long value) {
+        return FIXED64_SIZE;
+    }
+
+    public static int computeSInt32SizeNoTag(final int value) {
+        return computeRawVarint32Size(encodeZigZag32(value));
+    }
+
+    public static int computeSInt64SizeNoTag(final long value) {
+        return computeRawVarint64Size(encodeZigZag64(value));
+    }
+
+    public static int computeStringSizeNoTag(final CharSequence value) {
+        int length = Utf8.encodedLength(value);
+        if (length < 0) {
+            length = value.toString().getBytes(ProtoUtil.Charsets.UTF_8).length;
+        }
+        return computeLengthDelimitedSize(length);
+    }
+
+    public static int computeStringSizeNoTag(final Utf8String value) {
+        return computeLengthDelimitedSize(value.size());
+    }
+
+    public static int computeBytesSizeNoTag(final byte[] value) {
+        return computeLengthDelimitedSize(value.length);
+    }
+
+    public static int computeBytesSizeNoTag(final ByteSlice value) {
+        return computeLengthDelimitedSize(value.size());
+    }
+
+    public static int computeBytesSizeNoTag(final RepeatedByte value) {
+        return computeLengthDelimitedSize(value.length());
+    }
+
+    public static int computeMessageSizeNoTag(final ProtoMessage<?> value) {
+        return computeLengthDelimitedSize(value.getSerializedSize());
+    }
+
+    public static int computeMessageSizeNoTag(final LazyMessage<?> value) {
+        return computeLengthDelimitedSize(value.getSerializedSize());
+    }
+
+    /**
+     * @return size of the contents and the end tag
+     */
+    public static int computeGroupSizeNoTag(final ProtoMessage<?> value, final int fieldNumber) {
+        return value.getSerializedSize() + computeRawVarint32Size(makeTag(fieldNumber, WIRETYPE_END_GROUP));
+    }
+
+    private static int computeLengthDelimitedSize(final int length) {
+        return computeRawVarint32Size(length) + length;
+    }
+
+    /**
+     * Compute the number of bytes that would be needed to encode a varint.
+     * {@code value} is treated as unsigned, so it won't be sign-extended if
+     * negative.
+     */
+    public static int computeRawVarint32Size(final int value) {
+        if ((value & (~0 << 7)) == 0) return 1;
+        if ((value & (~0 << 14)) == 0) return 2;
+        if ((value & (~0 << 21)) == 0) return 3;
+        if ((value & (~0 << 28)) == 0) return 4;
+        return 5;
+    }
+
+    /** Compute the number of bytes that would be needed to encode a varint. */
+    public static int computeRawVarint64Size(long value) {
+        // handle two popular special cases up front ...
+        if ((value & (~0L << 7)) == 0L) return 1;
+        if (value < 0L) return 10;
+        // ... leaving us with 8 remaining, which we can divide and conquer
+        int n = 2;
+        if ((value & (~0L << 35)) != 0L) {
+            n += 4;
+            value >>>= 28;
+        }
+        if ((value & (~0L << 21)) != 0L) {
+            n += 2;
+            value >>>= 14;
+        }
+        if ((value & (~0L << 14)) != 0L) {
+            n += 1;
+        }
+        return n;
+    }
+
+    // -----------------------------------------------------------------
+    // Repeated and packed fields of primitive arrays. The values are passed as an
+    // array and a length so that both bare arrays and length-tracked stores can be
+    // written. Empty fields are not written at all, which matches protobuf-java.
+
+    public void writeRepeatedDouble(final int tag, final double[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeDoubleNoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedFloat(final int tag, final float[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeFloatNoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedInt64(final int tag, final long[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeInt64NoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedUInt64(final int tag, final long[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeUInt64NoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedSInt64(final int tag, final long[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeSInt64NoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedFixed64(final int tag, final long[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeFixed64NoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedSFixed64(final int tag, final long[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeSFixed64NoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedInt32(final int tag, final int[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeInt32NoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedUInt32(final int tag, final int[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeUInt32NoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedSInt32(final int tag, final int[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeSInt32NoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedFixed32(final int tag, final int[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeFixed32NoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedSFixed32(final int tag, final int[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeSFixed32NoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedBool(final int tag, final boolean[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeBoolNoTag(values[i]);
+        }
+    }
+
+    public void writeRepeatedEnum(final int tag, final int[] values, final int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writeRawVarint32(tag);
+            writeEnumNoTag(values[i]);
+        }
+    }
+
+    public void writePackedDouble(final int tag, final double[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(8 * length);
+        writeRawLittleEndianDoubles(values, 0, length);
+    }
+
+    public void writePackedFloat(final int tag, final float[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(4 * length);
+        writeRawLittleEndianFloats(values, 0, length);
+    }
+
+    public void writePackedInt64(final int tag, final long[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(computeInt64DataSize(values, length));
+        for (int i = 0; i < length; i++) {
+            writeInt64NoTag(values[i]);
+        }
+    }
+
+    public void writePackedUInt64(final int tag, final long[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(computeUInt64DataSize(values, length));
+        for (int i = 0; i < length; i++) {
+            writeUInt64NoTag(values[i]);
+        }
+    }
+
+    public void writePackedSInt64(final int tag, final long[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(computeSInt64DataSize(values, length));
+        for (int i = 0; i < length; i++) {
+            writeSInt64NoTag(values[i]);
+        }
+    }
+
+    public void writePackedFixed64(final int tag, final long[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(8 * length);
+        writeRawLittleEndianLongs(values, 0, length);
+    }
+
+    public void writePackedSFixed64(final int tag, final long[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(8 * length);
+        writeRawLittleEndianLongs(values, 0, length);
+    }
+
+    public void writePackedInt32(final int tag, final int[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(computeInt32DataSize(values, length));
+        for (int i = 0; i < length; i++) {
+            writeInt32NoTag(values[i]);
+        }
+    }
+
+    public void writePackedUInt32(final int tag, final int[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(computeUInt32DataSize(values, length));
+        for (int i = 0; i < length; i++) {
+            writeUInt32NoTag(values[i]);
+        }
+    }
+
+    public void writePackedSInt32(final int tag, final int[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(computeSInt32DataSize(values, length));
+        for (int i = 0; i < length; i++) {
+            writeSInt32NoTag(values[i]);
+        }
+    }
+
+    public void writePackedFixed32(final int tag, final int[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(4 * length);
+        writeRawLittleEndianInts(values, 0, length);
+    }
+
+    public void writePackedSFixed32(final int tag, final int[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(4 * length);
+        writeRawLittleEndianInts(values, 0, length);
+    }
+
+    public void writePackedBool(final int tag, final boolean[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(length);
+        for (int i = 0; i < length; i++) {
+            writeRawByte(values[i] ? 1 : 0);
+        }
+    }
+
+    public void writePackedEnum(final int tag, final int[] values, final int length) throws IOException {
+        if (length == 0) return;
+        writeRawVarint32(tag);
+        writeRawVarint32(computeEnumDataSize(values, length));
+        for (int i = 0; i < length; i++) {
+            writeEnumNoTag(values[i]);
+        }
+    }
+
+    public static int computeRepeatedDoubleSize(final int tag, final double[] values, final int length) {
+        return length * (computeRawVarint32Size(tag) + 8);
+    }
+
+    public static int computeRepeatedFloatSize(final int tag, final float[] values, final int length) {
+        return length * (computeRawVarint32Size(tag) + 4);
+    }
+
+    public static int computeRepeatedInt64Size(final int tag, final long[] values, final int length) {
+        return length * computeRawVarint32Size(tag) + computeInt64DataSize(values, length);
+    }
+
+    public static int computeRepeatedUInt64Size(final int tag, final long[] values, final int length) {
+        return length * computeRawVarint32Size(tag) + computeUInt64DataSize(values, length);
+    }
+
+    public static int computeRepeatedSInt64Size(final int tag, final long[] values, final int length) {
+        return length * computeRawVarint32Size(tag) + computeSInt64DataSize(values, length);
+    }
+
+    public static int computeRepeatedFixed64Size(final int tag, final long[] values, final int length) {
+        return length * (computeRawVarint32Size(tag) + 8);
+    }
+
+    public static int computeRepeatedSFixed64Size(final int tag, final long[] values, final int length) {
+        return length * (computeRawVarint32Size(tag) + 8);
+    }
+
+    public static int computeRepeatedInt32Size(final int tag, final int[] values, final int length) {
+        return length * computeRawVarint32Size(tag) + computeInt32DataSize(values, length);
+    }
+
+    public static int computeRepeatedUInt32Size(final int tag, final int[] values, final int length) {
+        return length * computeRawVarint32Size(tag) + computeUInt32DataSize(values, length);
+    }
+
+    public static int computeRepeatedSInt32Size(final int tag, final int[] values, final int length) {
+        return length * computeRawVarint32Size(tag) + computeSInt32DataSize(values, length);
+    }
+
+    public static int computeRepeatedFixed32Size(final int tag, final int[] values, final int length) {
+        return length * (computeRawVarint32Size(tag) + 4);
+    }
+
+    public static int computeRepeatedSFixed32Size(final int tag, final int[] values, final int length) {
+        return length * (computeRawVarint32Size(tag) + 4);
+    }
+
+    public static int computeRepeatedBoolSize(final int tag, final boolean[] values, final int length) {
+        return length * (computeRawVarint32Size(tag) + 1);
+    }
+
+    public static int computeRepeatedEnumSize(final int tag, final int[] values, final int length) {
+        return length * computeRawVarint32Size(tag) + computeEnumDataSize(values, length);
+    }
+
+    public static int computePackedDoubleSize(final int tag, final double[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = 8 * length;
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    public static int computePackedFloatSize(final int tag, final float[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = 4 * length;
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    public static int computePackedInt64Size(final int tag, final long[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = computeInt64DataSize(values, length);
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    public static int computePackedUInt64Size(final int tag, final long[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = computeUInt64DataSize(values, length);
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    public static int computePackedSInt64Size(final int tag, final long[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = computeSInt64DataSize(values, length);
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    public static int computePackedFixed64Size(final int tag, final long[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = 8 * length;
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    public static int computePackedSFixed64Size(final int tag, final long[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = 8 * length;
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    public static int computePackedInt32Size(final int tag, final int[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = computeInt32DataSize(values, length);
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    public static int computePackedUInt32Size(final int tag, final int[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = computeUInt32DataSize(values, length);
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    public static int computePackedSInt32Size(final int tag, final int[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = computeSInt32DataSize(values, length);
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    public static int computePackedFixed32Size(final int tag, final int[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = 4 * length;
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    public static int computePackedSFixed32Size(final int tag, final int[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = 4 * length;
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    public static int computePackedBoolSize(final int tag, final boolean[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = length;
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    public static int computePackedEnumSize(final int tag, final int[] values, final int length) {
+        if (length == 0) return 0;
+        final int dataSize = computeEnumDataSize(values, length);
+        return computeRawVarint32Size(tag) + computeRawVarint32Size(dataSize) + dataSize;
+    }
+
+    private static int computeInt64DataSize(final long[] values, final int length) {
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            size += computeInt64SizeNoTag(values[i]);
+        }
+        return size;
+    }
+
+    private static int computeUInt64DataSize(final long[] values, final int length) {
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            size += computeUInt64SizeNoTag(values[i]);
+        }
+        return size;
+    }
+
+    private static int computeSInt64DataSize(final long[] values, final int length) {
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            size += computeSInt64SizeNoTag(values[i]);
+        }
+        return size;
+    }
+
+    private static int computeInt32DataSize(final int[] values, final int length) {
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            size += computeInt32SizeNoTag(values[i]);
+        }
+        return size;
+    }
+
+    private static int computeUInt32DataSize(final int[] values, final int length) {
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            size += computeUInt32SizeNoTag(values[i]);
+        }
+        return size;
+    }
+
+    private static int computeSInt32DataSize(final int[] values, final int length) {
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            size += computeSInt32SizeNoTag(values[i]);
+        }
+        return size;
+    }
+
+    private static int computeEnumDataSize(final int[] values, final int length) {
+        int size = 0;
+        for (int i = 0; i < length; i++) {
+            size += computeEnumSizeNoTag(values[i]);
+        }
+        return size;
+    }
+
+    // =================================================================
+    // Raw writes that may be overridden by subclasses that are backed by other memory
+
+    /** Write a single byte. */
+    public void writeRawByte(final byte value) throws IOException {
+        if (position == limit) {
+            throw new OutOfSpaceException(position, limit);
+        }
+        buffer[position++] = value;
+    }
+
+    /** Write a single byte, represented by an integer value. */
+    public final void writeRawByte(final int value) throws IOException {
+        writeRawByte((byte) value);
+    }
+
+    /** Write an array of bytes. */
+    public final void writeRawBytes(final byte[] value) throws IOException {
+        writeRawBytes(value, 0, value.length);
+    }
+
+    /** Write part of an array of bytes. */
+    public void writeRawBytes(final byte[] value, final int offset, final int length) throws IOException {
+        requireSpace(length);
+        System.arraycopy(value, offset, buffer, position, length);
+        position += length;
+    }
+
+    /**
+     * Encode and write a varint.  {@code value} is treated as
+     * unsigned, so it won't be sign-extended if negative.
+     */
+    public void writeRawVarint32(int value) throws IOException {
+        if ((value & ~0x7F) == 0 && position < limit) {
+            buffer[position++] = (byte) value;
+            return;
+        }
+        if (limit - position < MAX_VARINT32_SIZE) {
+            requireSpace(computeRawVarint32Size(value));
+        }
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /** Encode and write a varint. */
+    public void writeRawVarint64(long value) throws IOException {
+        if (limit - position < MAX_VARINT64_SIZE) {
+            requireSpace(computeRawVarint64Size(value));
+        }
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) (((int) value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+    }
+
+    /** Write a little-endian 32-bit integer. */
+    public void writeRawLittleEndian32(final int value) throws IOException {
+        requireSpace(FIXED32_SIZE);
+        final byte[] buffer = this.buffer;
+        int pos = position;
+        buffer[pos++] = (byte) (value);
+        buffer[pos++] = (byte) (value >>> 8);
+        buffer[pos++] = (byte) (value >>> 16);
+        buffer[pos++] = (byte) (value >>> 24);
+        position = pos;
+    }
+
+    /** Write a little-endian 64-bit integer. */
+    public void writeRawLittleEndian64(final long value) throws IOException {
+        requireSpace(FIXED64_SIZE);
+        final byte[] buffer = this.buffer;
+        int pos = position;
+        buffer[pos++] = (byte) (value);
+        buffer[pos++] = (byte) (value >>> 8);
+        buffer[pos++] = (byte) (value >>> 16);
+        buffer[pos++] = (byte) (value >>> 24);
+        buffer[pos++] = (byte) (value >>> 32);
+        buffer[pos++] = (byte) (value >>> 40);
+        buffer[pos++] = (byte) (value >>> 48);
+        buffer[pos++] = (byte) (value >>> 56);
+        position = pos;
+    }
+
+    /**
+     * Writes the UTF-8 encoding of a sequence without unpaired surrogates
+     *
+     * @param encodedLength number of bytes, see {@link Utf8#encodedLength(CharSequence)}
+     */
+    void writeRawUtf8(final CharSequence value, final int encodedLength) throws IOException {
+        requireSpace(encodedLength);
+        position = Utf8.encode(value, buffer, position);
+    }
+
+    void writeRawLittleEndianInts(final int[] values, final int offset, final int count) throws IOException {
+        requireSpace(FIXED32_SIZE * count);
+        LittleEndian.copyInts(values, offset, buffer, position, count);
+        position += FIXED32_SIZE * count;
+    }
+
+    void writeRawLittleEndianLongs(final long[] values, final int offset, final int count) throws IOException {
+        requireSpace(FIXED64_SIZE * count);
+        LittleEndian.copyLongs(values, offset, buffer, position, count);
+        position += FIXED64_SIZE * count;
+    }
+
+    void writeRawLittleEndianFloats(final float[] values, final int offset, final int count) throws IOException {
+        requireSpace(FIXED32_SIZE * count);
+        LittleEndian.copyFloats(values, offset, buffer, position, count);
+        position += FIXED32_SIZE * count;
+    }
+
+    void writeRawLittleEndianDoubles(final double[] values, final int offset, final int count) throws IOException {
+        requireSpace(FIXED64_SIZE * count);
+        LittleEndian.copyDoubles(values, offset, buffer, position, count);
+        position += FIXED64_SIZE * count;
+    }
+
+    /**
+     * Makes sure that at least {@code length} bytes can be written to the buffer.
+     * Subclasses that are backed by streams may flush the buffer to make room.
+     */
+    void requireSpace(final int length) throws IOException {
+        if (length < 0 || limit - position < length) {
+            throw new OutOfSpaceException(position, limit);
+        }
+    }
+
+    // Package-level so that subclasses can share the bookkeeping.
+    // Positions are absolute indices into the buffer.
+    byte[] buffer;
+    int offset;
+    int position;
+    int limit;
+
+}
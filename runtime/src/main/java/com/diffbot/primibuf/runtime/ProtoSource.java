@@ -55,7 +55,8 @@ package com.diffbot.primibuf.runtime;
 import com.google.protobuf.*;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import static com.diffbot.primibuf.runtime.InvalidProtocolBufferException.*;
@@ -69,24 +70,86 @@ import static com.google.protobuf.CodedInputStream.decodeZigZag64;
  * 1. support {@link #getPosition} and {@link #rewindToPosition}
  * 2. remove reading bytes to ByteString
  * 3. no extends from CodedInputStream, fix compilation due to private/package-level fields/methods
+ * 4. raw reads may be overridden by package-level subclasses that are backed by other memory, e.g., {@link ByteBufferSource}
+ *    or {@link StreamSource}
  */
 public class ProtoSource {
 
+    /**
+     * Creates an empty source that can be pointed at data using
+     * {@link #setInput(byte[], int, int)}. Reusing a source avoids
+     * allocating a new decoder for each message.
+     */
+    public static ProtoSource newInstance() {
+        return new ProtoSource(ProtoUtil.EMPTY_BYTE_ARRAY, 0, 0);
+    }
+
+    /**
+     * Creates a source that reads from the entire array
+     */
+    public static ProtoSource newInstance(final byte[] buffer) {
+        return new ProtoSource(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Creates a source that reads from the specified range of the array
+     */
+    public static ProtoSource newInstance(final byte[] buffer, final int offset, final int len) {
+        return new ProtoSource(buffer, offset, len);
+    }
+
+    /**
+     * Creates a source that reads the remaining bytes of the buffer, i.e., between
+     * position and limit. Buffers with an accessible backing array are read from the
+     * array directly, while all other buffers (e.g. direct or read-only buffers) are
+     * read through the {@link ByteBuffer} API without being copied to the heap.
+     * <p>
+     * The position and limit of the passed in buffer are not modified.
+     */
+    public static ProtoSource newInstance(final ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new ProtoSource(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return new ByteBufferSource(buffer);
+    }
+
+    /**
+     * Creates a source that reads from a stream through a refillable buffer
+     * with a default size of 4 KB
+     */
+    public static ProtoSource newInstance(final InputStream input) {
+        return new StreamSource(input, StreamSource.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Creates a source that reads from a stream through a refillable buffer
+     * of the specified size
+     */
+    public static ProtoSource newInstance(final InputStream input, final int bufferSize) {
+        return new StreamSource(input, bufferSize);
+    }
+
     private static final int DEFAULT_RECURSION_LIMIT = 100;
     /** Visible for subclasses. See setRecursionLimit() */
     int recursionDepth;
     int recursionLimit = DEFAULT_RECURSION_LIMIT;
 
 
-    private final byte[] buffer;
-    private int limit;
-    private int bufferSizeAfterLimit;
-    private int pos;
-    private int startPos;
-    private int lastTag;
+    // Package-level so that subclasses backed by other memory can share the limit bookkeeping.
+    // Positions are absolute indices into the underlying memory.
+    byte[] buffer;
+    int limit;
+    int bufferSizeAfterLimit;
+    int pos;
+    int startPos;
+    int lastTag;
 
     /** The absolute position of the end of the current message. */
-    private int currentLimit = Integer.MAX_VALUE;
+    int currentLimit = Integer.MAX_VALUE;
+
+    StringInterner stringInterner = StringInterner.getDefaultInstance();
+    FieldMask rootFieldMask = null;
+    FieldMask fieldMask = null;
 
     public ProtoSource(final byte[] buffer, final int offset, final int len) {
         this.buffer = buffer;
@@ -95,6 +158,44 @@ public class ProtoSource {
         startPos = pos;
     }
 
+    /** Used by subclasses that don't read from a heap array */
+    ProtoSource(final int offset, final int len) {
+        this(ProtoUtil.EMPTY_BYTE_ARRAY, offset, len);
+    }
+
+    /**
+     * Changes the input to the entire array and resets the internal state
+     *
+     * @return this
+     */
+    public ProtoSource setInput(final byte[] buffer) {
+        return setInput(buffer, 0, buffer.length);
+    }
+
+    /**
+     * Changes the input to the specified range of the array and resets the
+     * internal state, i.e., the last tag, all pushed limits, and the recursion
+     * depth. This allows a single source to be reused for decoding many messages.
+     *
+     * @return this
+     */
+    public ProtoSource setInput(final byte[] buffer, final int offset, final int len) {
+        this.buffer = buffer;
+        resetInternalState(offset, len);
+        return this;
+    }
+
+    void resetInternalState(final int offset, final int len) {
+        limit = offset + len;
+        pos = offset;
+        startPos = offset;
+        bufferSizeAfterLimit = 0;
+        currentLimit = Integer.MAX_VALUE;
+        lastTag = 0;
+        recursionDepth = 0;
+        fieldMask = rootFieldMask;
+    }
+
     public int readTag() throws IOException {
         if (isAtEnd()) {
             lastTag = 0;
@@ -254,7 +355,28 @@ public class ProtoSource {
         if (size > 0 && size <= (limit - pos)) {
             // Fast path:  We already have the bytes in a contiguous buffer, so
             //   just copy directly from it.
-            final String result = new String(buffer, pos, size, StandardCharsets.UTF_8);
+            final String result = Utf8.decode(buffer, pos, size);
+            pos += size;
+            return result;
+        }
+
+        if (size == 0) {
+            return "";
+        }
+        if (size < 0) {
+            throw negativeSize();
+        }
+        throw truncatedMessage();
+    }
+
+    /**
+     * Reads a string and returns the canonical instance from the {@link StringInterner}
+     * of this source, which avoids allocations for frequently repeated values.
+     */
+    public String readInternedString() throws IOException {
+        final int size = readRawVarint32();
+        if (size > 0 && size <= (limit - pos)) {
+            final String result = stringInterner.intern(buffer, pos, size);
             pos += size;
             return result;
         }
@@ -268,6 +390,63 @@ public class ProtoSource {
         throw truncatedMessage();
     }
 
+    /**
+     * Sets the interner that is used by {@link #readInternedString()}. Defaults
+     * to the shared {@link StringInterner#getDefaultInstance()}.
+     *
+     * @return this
+     */
+    public ProtoSource setStringInterner(final StringInterner stringInterner) {
+        if (stringInterner == null) {
+            throw new NullPointerException("stringInterner");
+        }
+        this.stringInterner = stringInterner;
+        return this;
+    }
+
+    public StringInterner getStringInterner() {
+        return stringInterner;
+    }
+
+    /**
+     * Sets the mask that selects the fields that get decoded by messages that were
+     * generated with the field_masks option. Other fields get skipped. The mask
+     * applies to the top-level message and is kept when the input changes.
+     *
+     * @param fieldMask fields to decode, or null to decode all fields
+     * @return this
+     */
+    public ProtoSource setFieldMask(final FieldMask fieldMask) {
+        this.rootFieldMask = fieldMask;
+        this.fieldMask = fieldMask;
+        return this;
+    }
+
+    /**
+     * @return mask of the message that is currently being decoded, or null if all fields should be decoded
+     */
+    public FieldMask getFieldMask() {
+        return fieldMask;
+    }
+
+    /**
+     * Reads a string without decoding it. The result is a view into the
+     * input buffer, so it is only valid until the buffer gets modified.
+     */
+    public void readString(final Utf8String store) throws IOException {
+        final int size = readRawVarint32();
+        if (size >= 0 && size <= (limit - pos)) {
+            store.setView(buffer, pos, size);
+            pos += size;
+            return;
+        }
+
+        if (size < 0) {
+            throw negativeSize();
+        }
+        throw truncatedMessage();
+    }
+
     public void readGroup(
             final ProtoMessage builder,
             final int fieldNumber)
@@ -275,30 +454,81 @@ public class ProtoSource {
         if (recursionDepth >= recursionLimit) {
             throw recursionLimitExceeded();
         }
+        final FieldMask parentMask = fieldMask;
+        fieldMask = null;
         ++recursionDepth;
         builder.mergeFrom(this);
         checkLastTagWas(makeTag(fieldNumber, com.google.protobuf.WireFormat.WIRETYPE_END_GROUP));
         --recursionDepth;
+        fieldMask = parentMask;
     }
 
     public void readMessage(final ProtoMessage message) throws IOException {
+        readMessage(message, null);
+    }
+
+    /**
+     * Reads a message and only decodes the fields that are selected by the
+     * mask. A null mask decodes all fields.
+     */
+    public void readMessage(final ProtoMessage message, final FieldMask mask) throws IOException {
         final int length = readRawVarint32();
         if (recursionDepth >= recursionLimit) {
             throw recursionLimitExceeded();
         }
         final int oldLimit = pushLimit(length);
+        final FieldMask parentMask = fieldMask;
+        fieldMask = mask;
         ++recursionDepth;
         message.mergeFrom(this);
         checkLastTagWas(0);
         --recursionDepth;
+        fieldMask = parentMask;
         popLimit(oldLimit);
     }
 
+    /**
+     * Records the encoded message without parsing it. The recorded bytes are a
+     * view into the input buffer, so they need to be parsed before the buffer
+     * gets modified.
+     */
+    public void readMessage(final LazyMessage<?> store) throws IOException {
+        final int size = readRawVarint32();
+        if (size >= 0 && size <= (limit - pos)) {
+            store.setView(buffer, pos, size);
+            pos += size;
+            return;
+        }
+
+        if (size < 0) {
+            throw negativeSize();
+        }
+        throw truncatedMessage();
+    }
+
     public byte[] readBytes() throws IOException {
         final int size = readRawVarint32();
         return readRawBytes(size);
     }
 
+    /**
+     * Reads bytes without copying them. The result is a view into the
+     * input buffer, so it is only valid until the buffer gets modified.
+     */
+    public void readBytes(final ByteSlice store) throws IOException {
+        final int size = readRawVarint32();
+        if (size >= 0 && size <= (limit - pos)) {
+            store.setView(buffer, pos, size);
+            pos += size;
+            return;
+        }
+
+        if (size < 0) {
+            throw negativeSize();
+        }
+        throw truncatedMessage();
+    }
+
     public int readUInt32() throws IOException {
         return readRawVarint32();
     }
@@ -323,6 +553,777 @@ public class ProtoSource {
         return decodeZigZag64(readRawVarint64());
     }
 
+    // -----------------------------------------------------------------
+    // Packed fixed-width fields get sized from the length prefix and copied in bulk.
+    // The values get appended to the existing store, which may be null.
+
+    public double[] readPackedDouble(final double[] store) throws IOException {
+        double[] result = store == null ? ProtoUtil.EMPTY_DOUBLE_ARRAY : store;
+        int remaining = readPackedCount(FIXED64_SIZE);
+        while (remaining > 0) {
+            final int n = result.length;
+            final int count = allocatableElements(remaining, FIXED64_SIZE, n);
+            result = Arrays.copyOf(result, n + count);
+            readRawLittleEndianDoubles(result, n, count);
+            remaining -= count;
+        }
+        return result;
+    }
+
+    public float[] readPackedFloat(final float[] store) throws IOException {
+        float[] result = store == null ? ProtoUtil.EMPTY_FLOAT_ARRAY : store;
+        int remaining = readPackedCount(FIXED32_SIZE);
+        while (remaining > 0) {
+            final int n = result.length;
+            final int count = allocatableElements(remaining, FIXED32_SIZE, n);
+            result = Arrays.copyOf(result, n + count);
+            readRawLittleEndianFloats(result, n, count);
+            remaining -= count;
+        }
+        return result;
+    }
+
+    public long[] readPackedFixed64(final long[] store) throws IOException {
+        long[] result = store == null ? ProtoUtil.EMPTY_LONG_ARRAY : store;
+        int remaining = readPackedCount(FIXED64_SIZE);
+        while (remaining > 0) {
+            final int n = result.length;
+            final int count = allocatableElements(remaining, FIXED64_SIZE, n);
+            result = Arrays.copyOf(result, n + count);
+            readRawLittleEndianLongs(result, n, count);
+            remaining -= count;
+        }
+        return result;
+    }
+
+    public long[] readPackedSFixed64(final long[] store) throws IOException {
+        return readPackedFixed64(store);
+    }
+
+    public int[] readPackedFixed32(final int[] store) throws IOException {
+        int[] result = store == null ? ProtoUtil.EMPTY_INT_ARRAY : store;
+        int remaining = readPackedCount(FIXED32_SIZE);
+        while (remaining > 0) {
+            final int n = result.length;
+            final int count = allocatableElements(remaining, FIXED32_SIZE, n);
+            result = Arrays.copyOf(result, n + count);
+            readRawLittleEndianInts(result, n, count);
+            remaining -= count;
+        }
+        return result;
+    }
+
+    public int[] readPackedSFixed32(final int[] store) throws IOException {
+        return readPackedFixed32(store);
+    }
+
+    /**
+     * Bools are encoded as varints, but the length is an upper bound for the
+     * number of elements since every value takes at least one byte.
+     */
+    public boolean[] readPackedBool(final boolean[] store) throws IOException {
+        final int length = readRawVarint32();
+        final int oldLimit = pushLimit(length);
+        final int offset = store == null ? 0 : store.length;
+        boolean[] result = Arrays.copyOf(store == null ? ProtoUtil.EMPTY_BOOLEAN_ARRAY : store,
+                offset + allocatableElements(length, 1, offset));
+        int n = offset;
+        while (getBytesUntilLimit() > 0) {
+            if (n == result.length) {
+                result = Arrays.copyOf(result, n + allocatableElements(getBytesUntilLimit(), 1, n));
+            }
+            result[n++] = readBool();
+        }
+        popLimit(oldLimit);
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    // -----------------------------------------------------------------
+    // Packed varint fields get decoded in a single pass. The number of elements is
+    // known up front by counting the bytes that terminate a varint, i.e., bytes with
+    // a clear MSB.
+
+    public int[] readPackedInt32(final int[] store) throws IOException {
+        return readPackedVarint32(store, false);
+    }
+
+    public int[] readPackedUInt32(final int[] store) throws IOException {
+        return readPackedVarint32(store, false);
+    }
+
+    public int[] readPackedSInt32(final int[] store) throws IOException {
+        return readPackedVarint32(store, true);
+    }
+
+    public long[] readPackedInt64(final long[] store) throws IOException {
+        return readPackedVarint64(store, false);
+    }
+
+    public long[] readPackedUInt64(final long[] store) throws IOException {
+        return readPackedVarint64(store, false);
+    }
+
+    public long[] readPackedSInt64(final long[] store) throws IOException {
+        return readPackedVarint64(store, true);
+    }
+
+    public void readPackedEnum(final RepeatedEnum<?> store) throws IOException {
+        final int length = readRawVarint32();
+        final int oldLimit = pushLimit(length);
+        final int count = countPackedVarints(length);
+        if (count >= 0) {
+            store.reserve(count);
+            final int[] array = store.array;
+            final int end = store.length + count;
+            for (int i = store.length; i < end; i++) {
+                array[i] = readRawVarint32();
+            }
+            store.length = end;
+            checkPackedEnd();
+        } else {
+            while (getBytesUntilLimit() > 0) {
+                store.addValue(readRawVarint32());
+            }
+        }
+        popLimit(oldLimit);
+    }
+
+    private int[] readPackedVarint32(final int[] store, final boolean zigZag) throws IOException {
+        final int length = readRawVarint32();
+        final int oldLimit = pushLimit(length);
+        final int count = countPackedVarints(length);
+        final int offset = store == null ? 0 : store.length;
+        int[] result;
+        if (count >= 0) {
+            result = store == null ? new int[count] : Arrays.copyOf(store, offset + count);
+            for (int i = offset; i < result.length; i++) {
+                final int value = readRawVarint32();
+                result[i] = zigZag ? decodeZigZag32(value) : value;
+            }
+            checkPackedEnd();
+        } else {
+            // unknown number of elements, so grow as needed
+            result = Arrays.copyOf(store == null ? ProtoUtil.EMPTY_INT_ARRAY : store, offset + 16);
+            int n = offset;
+            while (getBytesUntilLimit() > 0) {
+                if (n == result.length) {
+                    result = Arrays.copyOf(result, n + (n >> 1));
+                }
+                final int value = readRawVarint32();
+                result[n++] = zigZag ? decodeZigZag32(value) : value;
+            }
+            result = n == result.length ? result : Arrays.copyOf(result, n);
+        }
+        popLimit(oldLimit);
+        return result;
+    }
+
+    private long[] readPackedVarint64(final long[] store, final boolean zigZag) throws IOException {
+        final int length = readRawVarint32();
+        final int oldLimit = pushLimit(length);
+        final int count = countPackedVarints(length);
+        final int offset = store == null ? 0 : store.length;
+        long[] result;
+        if (count >= 0) {
+            result = store == null ? new long[count] : Arrays.copyOf(store, offset + count);
+            for (int i = offset; i < result.length; i++) {
+                final long value = readRawVarint64();
+                result[i] = zigZag ? decodeZigZag64(value) : value;
+            }
+            checkPackedEnd();
+        } else {
+            // unknown number of elements, so grow as needed
+            result = Arrays.copyOf(store == null ? ProtoUtil.EMPTY_LONG_ARRAY : store, offset + 16);
+            int n = offset;
+            while (getBytesUntilLimit() > 0) {
+                if (n == result.length) {
+                    result = Arrays.copyOf(result, n + (n >> 1));
+                }
+                final long value = readRawVarint64();
+                result[n++] = zigZag ? decodeZigZag64(value) : value;
+            }
+            result = n == result.length ? result : Arrays.copyOf(result, n);
+        }
+        popLimit(oldLimit);
+        return result;
+    }
+
+    /**
+     * A trailing byte with a set MSB does not get counted, so there may be
+     * data left if the last varint was incomplete.
+     */
+    private void checkPackedEnd() throws InvalidProtocolBufferException {
+        if (getBytesUntilLimit() != 0) {
+            throw truncatedMessage();
+        }
+    }
+
+    /**
+     * Counts the varints in the next length bytes without consuming them. Subclasses
+     * that are not backed by a heap array need to override this method.
+     *
+     * @return number of varints, or -1 if the count can't be determined up front
+     */
+    int countPackedVarints(final int length) throws IOException {
+        if (length > limit - pos) {
+            throw truncatedMessage();
+        }
+        return countVarints(buffer, pos, length);
+    }
+
+    /**
+     * Counts the bytes with a clear MSB, i.e., the number of varints that end
+     * within the range. Full words get counted 8 bytes at a time.
+     */
+    static int countVarints(final byte[] buffer, final int offset, final int length) {
+        int count = 0;
+        int i = offset;
+        final int end = offset + length;
+        if (UnsafeAccess.isAvailable()) {
+            for (; end - i >= 8; i += 8) {
+                count += Long.bitCount(~UnsafeAccess.getLong(buffer, i) & VARINT_MSB_MASK);
+            }
+        }
+        for (; i < end; i++) {
+            count += ~buffer[i] >>> 31;
+        }
+        return count;
+    }
+
+    static final long VARINT_MSB_MASK = 0x8080808080808080L;
+
+    /**
+     * Reads the length prefix of a packed fixed-width field
+     *
+     * @return number of elements
+     */
+    private int readPackedCount(final int elementSize) throws IOException {
+        final int length = readRawVarint32();
+        if (length < 0) {
+            throw negativeSize();
+        }
+        if (length % elementSize != 0) {
+            throw parseFailure();
+        }
+        return length / elementSize;
+    }
+
+    /**
+     * Returns how many of the remaining elements of a packed field may be allocated
+     * next. The length prefix is untrusted input, so it has to be backed by the input
+     * before any memory gets allocated for it. Sources that can't see all of the input
+     * return a smaller chunk that grows along with the already decoded elements.
+     *
+     * @param remaining   number of elements that are left
+     * @param elementSize upper bound for the encoded size of an element
+     * @param size        number of elements that have been decoded so far
+     * @return number of elements in [1, remaining]
+     */
+    private int allocatableElements(final int remaining, final int elementSize, final int size) throws IOException {
+        final int chunk = getAllocatableBytes(remaining * elementSize) / elementSize;
+        return Math.min(remaining, Math.max(Math.max(chunk, size), 1));
+    }
+
+    /**
+     * Returns how many of the next bytes may be allocated for up front. Sources that
+     * can see the remaining input check the length against it and return the full
+     * length.
+     *
+     * @param length untrusted number of bytes
+     * @return number of bytes that are safe to allocate
+     * @throws InvalidProtocolBufferException if the input ends before the length
+     */
+    int getAllocatableBytes(final int length) throws IOException {
+        if (length > limit - pos) {
+            throw truncatedMessage();
+        }
+        return length;
+    }
+
+    // -----------------------------------------------------------------
+    // Non-packed repeated fields get decoded in a single pass into scratch space that is
+    // owned by the source, and then get appended to the store with a single copy. The
+    // first tag has already been read, and the source is left in front of the next tag
+    // that does not match.
+
+    public double[] readRepeatedDouble(final double[] store, final int tag) throws IOException {
+        double[] scratch = scratchDoubles;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = readDouble();
+        } while (readTagIfEquals(tag));
+        scratchDoubles = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final double[] result = store == null ? new double[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        return result;
+    }
+
+    public float[] readRepeatedFloat(final float[] store, final int tag) throws IOException {
+        float[] scratch = scratchFloats;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = readFloat();
+        } while (readTagIfEquals(tag));
+        scratchFloats = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final float[] result = store == null ? new float[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        return result;
+    }
+
+    public long[] readRepeatedInt64(final long[] store, final int tag) throws IOException {
+        long[] scratch = scratchLongs;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = readInt64();
+        } while (readTagIfEquals(tag));
+        scratchLongs = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final long[] result = store == null ? new long[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        return result;
+    }
+
+    public long[] readRepeatedUInt64(final long[] store, final int tag) throws IOException {
+        long[] scratch = scratchLongs;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = readUInt64();
+        } while (readTagIfEquals(tag));
+        scratchLongs = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final long[] result = store == null ? new long[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        return result;
+    }
+
+    public long[] readRepeatedSInt64(final long[] store, final int tag) throws IOException {
+        long[] scratch = scratchLongs;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = readSInt64();
+        } while (readTagIfEquals(tag));
+        scratchLongs = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final long[] result = store == null ? new long[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        return result;
+    }
+
+    public long[] readRepeatedFixed64(final long[] store, final int tag) throws IOException {
+        long[] scratch = scratchLongs;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = readFixed64();
+        } while (readTagIfEquals(tag));
+        scratchLongs = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final long[] result = store == null ? new long[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        return result;
+    }
+
+    public long[] readRepeatedSFixed64(final long[] store, final int tag) throws IOException {
+        long[] scratch = scratchLongs;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = readSFixed64();
+        } while (readTagIfEquals(tag));
+        scratchLongs = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final long[] result = store == null ? new long[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        return result;
+    }
+
+    public int[] readRepeatedInt32(final int[] store, final int tag) throws IOException {
+        int[] scratch = scratchInts;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = readInt32();
+        } while (readTagIfEquals(tag));
+        scratchInts = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final int[] result = store == null ? new int[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        return result;
+    }
+
+    public int[] readRepeatedUInt32(final int[] store, final int tag) throws IOException {
+        int[] scratch = scratchInts;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = readUInt32();
+        } while (readTagIfEquals(tag));
+        scratchInts = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final int[] result = store == null ? new int[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        return result;
+    }
+
+    public int[] readRepeatedSInt32(final int[] store, final int tag) throws IOException {
+        int[] scratch = scratchInts;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = readSInt32();
+        } while (readTagIfEquals(tag));
+        scratchInts = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final int[] result = store == null ? new int[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        return result;
+    }
+
+    public int[] readRepeatedFixed32(final int[] store, final int tag) throws IOException {
+        int[] scratch = scratchInts;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = readFixed32();
+        } while (readTagIfEquals(tag));
+        scratchInts = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final int[] result = store == null ? new int[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        return result;
+    }
+
+    public int[] readRepeatedSFixed32(final int[] store, final int tag) throws IOException {
+        int[] scratch = scratchInts;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = readSFixed32();
+        } while (readTagIfEquals(tag));
+        scratchInts = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final int[] result = store == null ? new int[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        return result;
+    }
+
+    public boolean[] readRepeatedBool(final boolean[] store, final int tag) throws IOException {
+        boolean[] scratch = scratchBooleans;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = readBool();
+        } while (readTagIfEquals(tag));
+        scratchBooleans = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final boolean[] result = store == null ? new boolean[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        return result;
+    }
+
+    public String[] readRepeatedString(final String[] store, final int tag) throws IOException {
+        return readRepeatedString(store, tag, false);
+    }
+
+    /**
+     * @see #readInternedString()
+     */
+    public String[] readRepeatedInternedString(final String[] store, final int tag) throws IOException {
+        return readRepeatedString(store, tag, true);
+    }
+
+    private String[] readRepeatedString(final String[] store, final int tag, final boolean intern) throws IOException {
+        String[] scratch = scratchStrings;
+        int n = 0;
+        do {
+            if (n == scratch.length) {
+                scratch = Arrays.copyOf(scratch, nextScratchSize(n));
+            }
+            scratch[n++] = intern ? readInternedString() : readString();
+        } while (readTagIfEquals(tag));
+        scratchStrings = scratch;
+        final int offset = store == null ? 0 : store.length;
+        final String[] result = store == null ? new String[n] : Arrays.copyOf(store, offset + n);
+        System.arraycopy(scratch, 0, result, offset, n);
+        Arrays.fill(scratch, 0, n, null); // don't hold on to user data
+        return result;
+    }
+
+    /**
+     * Reads the next tag if it matches the expected tag. Otherwise, the
+     * source gets rewound to the position before the tag.
+     */
+    private boolean readTagIfEquals(final int tag) throws IOException {
+        final int position = getPosition();
+        if (readTag() == tag) {
+            return true;
+        }
+        rewindToPosition(position);
+        return false;
+    }
+
+    private static int nextScratchSize(final int size) {
+        return Math.max(MIN_SCRATCH_SIZE, size * 2);
+    }
+
+    private static final int MIN_SCRATCH_SIZE = 16;
+    private double[] scratchDoubles = ProtoUtil.EMPTY_DOUBLE_ARRAY;
+    private float[] scratchFloats = ProtoUtil.EMPTY_FLOAT_ARRAY;
+    private long[] scratchLongs = ProtoUtil.EMPTY_LONG_ARRAY;
+    private int[] scratchInts = ProtoUtil.EMPTY_INT_ARRAY;
+    private boolean[] scratchBooleans = ProtoUtil.EMPTY_BOOLEAN_ARRAY;
+    private String[] scratchStrings = ProtoUtil.EMPTY_STRING_ARRAY;
+
+    // -----------------------------------------------------------------
+    // Length-tracked stores get appended to in place, so merging keeps the existing
+    // values and parsing into a reused message does not need to allocate.
+
+    public void readRepeatedDouble(final RepeatedDouble store, final int tag) throws IOException {
+        do {
+            store.add(readDouble());
+        } while (readTagIfEquals(tag));
+    }
+
+    public void readRepeatedFloat(final RepeatedFloat store, final int tag) throws IOException {
+        do {
+            store.add(readFloat());
+        } while (readTagIfEquals(tag));
+    }
+
+    public void readRepeatedInt64(final RepeatedLong store, final int tag) throws IOException {
+        do {
+            store.add(readInt64());
+        } while (readTagIfEquals(tag));
+    }
+
+    public void readRepeatedUInt64(final RepeatedLong store, final int tag) throws IOException {
+        do {
+            store.add(readUInt64());
+        } while (readTagIfEquals(tag));
+    }
+
+    public void readRepeatedSInt64(final RepeatedLong store, final int tag) throws IOException {
+        do {
+            store.add(readSInt64());
+        } while (readTagIfEquals(tag));
+    }
+
+    public void readRepeatedFixed64(final RepeatedLong store, final int tag) throws IOException {
+        do {
+            store.add(readFixed64());
+        } while (readTagIfEquals(tag));
+    }
+
+    public void readRepeatedSFixed64(final RepeatedLong store, final int tag) throws IOException {
+        do {
+            store.add(readSFixed64());
+        } while (readTagIfEquals(tag));
+    }
+
+    public void readRepeatedInt32(final RepeatedInt store, final int tag) throws IOException {
+        do {
+            store.add(readInt32());
+        } while (readTagIfEquals(tag));
+    }
+
+    public void readRepeatedUInt32(final RepeatedInt store, final int tag) throws IOException {
+        do {
+            store.add(readUInt32());
+        } while (readTagIfEquals(tag));
+    }
+
+    public void readRepeatedSInt32(final RepeatedInt store, final int tag) throws IOException {
+        do {
+            store.add(readSInt32());
+        } while (readTagIfEquals(tag));
+    }
+
+    public void readRepeatedFixed32(final RepeatedInt store, final int tag) throws IOException {
+        do {
+            store.add(readFixed32());
+        } while (readTagIfEquals(tag));
+    }
+
+    public void readRepeatedSFixed32(final RepeatedInt store, final int tag) throws IOException {
+        do {
+            store.add(readSFixed32());
+        } while (readTagIfEquals(tag));
+    }
+
+    public void readRepeatedBool(final RepeatedBoolean store, final int tag) throws IOException {
+        do {
+            store.add(readBool());
+        } while (readTagIfEquals(tag));
+    }
+
+    public void readPackedDouble(final RepeatedDouble store) throws IOException {
+        int remaining = readPackedCount(FIXED64_SIZE);
+        while (remaining > 0) {
+            final int count = allocatableElements(remaining, FIXED64_SIZE, store.length);
+            store.reserve(count);
+            readRawLittleEndianDoubles(store.array, store.length, count);
+            store.length += count;
+            remaining -= count;
+        }
+    }
+
+    public void readPackedFloat(final RepeatedFloat store) throws IOException {
+        int remaining = readPackedCount(FIXED32_SIZE);
+        while (remaining > 0) {
+            final int count = allocatableElements(remaining, FIXED32_SIZE, store.length);
+            store.reserve(count);
+            readRawLittleEndianFloats(store.array, store.length, count);
+            store.length += count;
+            remaining -= count;
+        }
+    }
+
+    public void readPackedFixed64(final RepeatedLong store) throws IOException {
+        int remaining = readPackedCount(FIXED64_SIZE);
+        while (remaining > 0) {
+            final int count = allocatableElements(remaining, FIXED64_SIZE, store.length);
+            store.reserve(count);
+            readRawLittleEndianLongs(store.array, store.length, count);
+            store.length += count;
+            remaining -= count;
+        }
+    }
+
+    public void readPackedSFixed64(final RepeatedLong store) throws IOException {
+        readPackedFixed64(store);
+    }
+
+    public void readPackedFixed32(final RepeatedInt store) throws IOException {
+        int remaining = readPackedCount(FIXED32_SIZE);
+        while (remaining > 0) {
+            final int count = allocatableElements(remaining, FIXED32_SIZE, store.length);
+            store.reserve(count);
+            readRawLittleEndianInts(store.array, store.length, count);
+            store.length += count;
+            remaining -= count;
+        }
+    }
+
+    public void readPackedSFixed32(final RepeatedInt store) throws IOException {
+        readPackedFixed32(store);
+    }
+
+    public void readPackedBool(final RepeatedBoolean store) throws IOException {
+        final int length = readRawVarint32();
+        final int oldLimit = pushLimit(length);
+        store.reserve(allocatableElements(length, 1, store.length));
+        while (getBytesUntilLimit() > 0) {
+            if (store.length == store.capacity()) {
+                store.reserve(allocatableElements(getBytesUntilLimit(), 1, store.length));
+            }
+            store.array[store.length++] = readBool();
+        }
+        popLimit(oldLimit);
+    }
+
+    public void readPackedInt32(final RepeatedInt store) throws IOException {
+        readPackedVarint32(store, false);
+    }
+
+    public void readPackedUInt32(final RepeatedInt store) throws IOException {
+        readPackedVarint32(store, false);
+    }
+
+    public void readPackedSInt32(final RepeatedInt store) throws IOException {
+        readPackedVarint32(store, true);
+    }
+
+    public void readPackedInt64(final RepeatedLong store) throws IOException {
+        readPackedVarint64(store, false);
+    }
+
+    public void readPackedUInt64(final RepeatedLong store) throws IOException {
+        readPackedVarint64(store, false);
+    }
+
+    public void readPackedSInt64(final RepeatedLong store) throws IOException {
+        readPackedVarint64(store, true);
+    }
+
+    private void readPackedVarint32(final RepeatedInt store, final boolean zigZag) throws IOException {
+        final int length = readRawVarint32();
+        final int oldLimit = pushLimit(length);
+        final int count = countPackedVarints(length);
+        if (count >= 0) {
+            store.reserve(count);
+            final int[] array = store.array;
+            final int end = store.length + count;
+            for (int i = store.length; i < end; i++) {
+                final int value = readRawVarint32();
+                array[i] = zigZag ? decodeZigZag32(value) : value;
+            }
+            store.length = end;
+            checkPackedEnd();
+        } else {
+            while (getBytesUntilLimit() > 0) {
+                final int value = readRawVarint32();
+                store.add(zigZag ? decodeZigZag32(value) : value);
+            }
+        }
+        popLimit(oldLimit);
+    }
+
+    private void readPackedVarint64(final RepeatedLong store, final boolean zigZag) throws IOException {
+        final int length = readRawVarint32();
+        final int oldLimit = pushLimit(length);
+        final int count = countPackedVarints(length);
+        if (count >= 0) {
+            store.reserve(count);
+            final long[] array = store.array;
+            final int end = store.length + count;
+            for (int i = store.length; i < end; i++) {
+                final long value = readRawVarint64();
+                array[i] = zigZag ? decodeZigZag64(value) : value;
+            }
+            store.length = end;
+            checkPackedEnd();
+        } else {
+            while (getBytesUntilLimit() > 0) {
+                final long value = readRawVarint64();
+                store.add(zigZag ? decodeZigZag64(value) : value);
+            }
+        }
+        popLimit(oldLimit);
+    }
+
     // =================================================================
 
     public int readRawVarint32() throws IOException {
@@ -367,7 +1368,7 @@ public class ProtoSource {
         return (int) readRawVarint64SlowPath();
     }
 
-    private void skipRawVarint() throws IOException {
+    void skipRawVarint() throws IOException {
         if (limit - pos >= MAX_VARINT_SIZE) {
             skipRawVarintFastPath();
         } else {
@@ -375,7 +1376,7 @@ public class ProtoSource {
         }
     }
 
-    private void skipRawVarintFastPath() throws IOException {
+    void skipRawVarintFastPath() throws IOException {
         for (int i = 0; i < MAX_VARINT_SIZE; i++) {
             if (buffer[pos++] >= 0) {
                 return;
@@ -511,6 +1512,46 @@ public class ProtoSource {
                 | ((buffer[tempPos + 7] & 0xffL) << 56));
     }
 
+    /**
+     * Reads little-endian encoded values into the specified range. Subclasses that
+     * are backed by other memory need to override all readRawLittleEndian* bulk methods.
+     */
+    void readRawLittleEndianInts(final int[] dst, final int offset, final int count) throws IOException {
+        final int length = count * FIXED32_SIZE;
+        if (length > limit - pos) {
+            throw truncatedMessage();
+        }
+        LittleEndian.copyInts(buffer, pos, dst, offset, count);
+        pos += length;
+    }
+
+    void readRawLittleEndianLongs(final long[] dst, final int offset, final int count) throws IOException {
+        final int length = count * FIXED64_SIZE;
+        if (length > limit - pos) {
+            throw truncatedMessage();
+        }
+        LittleEndian.copyLongs(buffer, pos, dst, offset, count);
+        pos += length;
+    }
+
+    void readRawLittleEndianFloats(final float[] dst, final int offset, final int count) throws IOException {
+        final int length = count * FIXED32_SIZE;
+        if (length > limit - pos) {
+            throw truncatedMessage();
+        }
+        LittleEndian.copyFloats(buffer, pos, dst, offset, count);
+        pos += length;
+    }
+
+    void readRawLittleEndianDoubles(final double[] dst, final int offset, final int count) throws IOException {
+        final int length = count * FIXED64_SIZE;
+        if (length > limit - pos) {
+            throw truncatedMessage();
+        }
+        LittleEndian.copyDoubles(buffer, pos, dst, offset, count);
+        pos += length;
+    }
+
     public void resetSizeCounter() {
         startPos = pos;
     }
@@ -531,7 +1572,7 @@ public class ProtoSource {
         return oldLimit;
     }
 
-    private void recomputeBufferSizeAfterLimit() {
+    void recomputeBufferSizeAfterLimit() {
         limit += bufferSizeAfterLimit;
         final int bufferEnd = limit - startPos;
         if (bufferEnd > currentLimit) {
@@ -33,6 +33,12 @@ import java.nio.charset.Charset;
 public class ProtoUtil {
 
     static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+    static final int[] EMPTY_INT_ARRAY = new int[0];
+    static final long[] EMPTY_LONG_ARRAY = new long[0];
+    static final float[] EMPTY_FLOAT_ARRAY = new float[0];
+    static final double[] EMPTY_DOUBLE_ARRAY = new double[0];
+    static final boolean[] EMPTY_BOOLEAN_ARRAY = new boolean[0];
+    static final String[] EMPTY_STRING_ARRAY = new String[0];
 
     static class Charsets {
         static final Charset UTF_8 = Charset.forName("UTF-8");
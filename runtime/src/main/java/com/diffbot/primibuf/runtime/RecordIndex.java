@@ -0,0 +1,237 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package com.diffbot.primibuf.runtime;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static com.diffbot.primibuf.runtime.InvalidProtocolBufferException.*;
+
+/**
+ * Index of the start offsets of all records in a file or buffer of length-delimited
+ * messages. Building the index only reads the length prefixes and skips the payloads
+ * without decoding them, so it runs at roughly the speed at which the pages can be
+ * read (see {@link MappedFileReader#skipNext()}).
+ * <p>
+ * The index enables random access to individual records, e.g.,
+ *
+ * <pre>{@code
+ * index.read(reader, i, message.clear());
+ * }</pre>
+ * <p>
+ * and splitting the records into ranges of similar size for parallel readers,
+ * see {@link #split(int)}. The offsets are stored in a single {@code long[]}
+ * that can be persisted next to the data using {@link #writeTo(OutputStream)}.
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public final class RecordIndex {
+
+    /**
+     * Scans all length prefixes in the file
+     */
+    public static RecordIndex build(final Path file) throws IOException {
+        try (MappedFileReader reader = MappedFileReader.open(file)) {
+            return build(reader);
+        }
+    }
+
+    /**
+     * Scans the length prefixes of the remaining records of the reader
+     */
+    public static RecordIndex build(final MappedFileReader reader) throws IOException {
+        final RepeatedLong offsets = RepeatedLong.newEmptyInstance();
+        do {
+            offsets.add(reader.getPosition());
+        } while (reader.skipNext());
+        return new RecordIndex(offsets.toArray());
+    }
+
+    /**
+     * Scans the length prefixes of the records in the specified range. The offsets
+     * are relative to the beginning of the array.
+     */
+    public static RecordIndex build(final byte[] buffer, final int offset, final int length) throws IOException {
+        final RepeatedLong offsets = RepeatedLong.newEmptyInstance();
+        final ProtoSource source = ProtoSource.newInstance(buffer, offset, length);
+        while (!source.isAtEnd()) {
+            offsets.add(offset + source.getPosition());
+            final int size = source.readRawVarint32();
+            if (size < 0) {
+                throw negativeSize();
+            }
+            source.skipRawBytes(size);
+        }
+        offsets.add(offset + source.getPosition());
+        return new RecordIndex(offsets.toArray());
+    }
+
+    /**
+     * Reads an index that was written using {@link #writeTo(OutputStream)}
+     */
+    public static RecordIndex readFrom(final InputStream input) throws IOException {
+        final ProtoSource source = ProtoSource.newInstance(input);
+        final int count = source.readRawVarint32();
+        if (count < 0) {
+            throw negativeSize();
+        }
+        if (count == Integer.MAX_VALUE) {
+            throw parseFailure();
+        }
+
+        // The count is untrusted, so the offsets get read in chunks that only
+        // grow along with the data that has actually been read
+        long[] offsets = ProtoUtil.EMPTY_LONG_ARRAY;
+        int remaining = count + 1;
+        while (remaining > 0) {
+            final int n = offsets.length;
+            final int chunk = Math.min(remaining, Math.max(n, MIN_READ_CHUNK));
+            offsets = Arrays.copyOf(offsets, n + chunk);
+            source.readRawLittleEndianLongs(offsets, n, chunk);
+            remaining -= chunk;
+        }
+        return new RecordIndex(offsets);
+    }
+
+    public static RecordIndex readFrom(final Path file) throws IOException {
+        try (InputStream input = new BufferedInputStream(Files.newInputStream(file))) {
+            return readFrom(input);
+        }
+    }
+
+    /**
+     * @param offsets start offset of every record followed by the end offset of the last record
+     */
+    private RecordIndex(final long[] offsets) {
+        this.offsets = offsets;
+    }
+
+    /**
+     * Writes the number of records as a varint followed by all offsets
+     * as little-endian fixed64 values
+     */
+    public void writeTo(final OutputStream output) throws IOException {
+        final StreamSink sink = ProtoSink.newInstance(output);
+        sink.writeRawVarint32(size());
+        sink.writeRawLittleEndianLongs(offsets, 0, offsets.length);
+        sink.flush();
+    }
+
+    public void writeTo(final Path file) throws IOException {
+        try (OutputStream output = Files.newOutputStream(file)) {
+            writeTo(output);
+        }
+    }
+
+    /**
+     * @return number of records
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * @return offset of the length prefix of the record at the specified index
+     */
+    public long getOffset(final int index) {
+        checkIndex(index);
+        return offsets[index];
+    }
+
+    /**
+     * @return number of bytes of the record at the specified index including the length prefix
+     */
+    public int getLength(final int index) {
+        checkIndex(index);
+        return (int) (offsets[index + 1] - offsets[index]);
+    }
+
+    /**
+     * @return offset after the last record
+     */
+    public long getEndOffset() {
+        return offsets[offsets.length - 1];
+    }
+
+    /**
+     * Decodes the record at the specified index. The message does not get cleared first.
+     */
+    public void read(final MappedFileReader reader, final int index, final ProtoMessage<?> message) throws IOException {
+        reader.seek(getOffset(index));
+        if (!reader.readNext(message)) {
+            throw truncatedMessage();
+        }
+    }
+
+    /**
+     * Decodes the record at the specified index of an array that the index was built
+     * from. The source gets pointed at the record, so it can be reused across calls.
+     */
+    public void read(final byte[] buffer, final int index, final ProtoSource source, final ProtoMessage<?> message) throws IOException {
+        source.setInput(buffer, (int) getOffset(index), getLength(index));
+        source.readMessage(message);
+    }
+
+    /**
+     * Splits the records into consecutive ranges that contain a similar number
+     * of bytes. Range {@code i} contains the records {@code [splits[i], splits[i + 1])},
+     * so parallel readers can seek to {@link #getOffset(int)} of the first record and
+     * read until the first record of the next range.
+     *
+     * @param parts desired number of ranges
+     * @return {@code parts + 1} record indices starting with 0 and ending with {@link #size()}
+     */
+    public int[] split(final int parts) {
+        if (parts < 1) throw new IllegalArgumentException("parts must be at least 1");
+        final int[] splits = new int[parts + 1];
+        final long start = offsets[0];
+        final long bytes = getEndOffset() - start;
+        for (int i = 1; i < parts; i++) {
+            final long target = start + bytes * i / parts;
+            int index = Arrays.binarySearch(offsets, 0, offsets.length - 1, target);
+            if (index < 0) {
+                index = -index - 1; // first record that starts after the target
+            }
+            splits[i] = Math.max(splits[i - 1], index);
+        }
+        splits[parts] = size();
+        return splits;
+    }
+
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= offsets.length - 1) {
+            throw new ArrayIndexOutOfBoundsException("Index " + index + " is out of bounds for " + size() + " records");
+        }
+    }
+
+    private static final int MIN_READ_CHUNK = 1024;
+
+    private final long[] offsets;
+
+}
@@ -59,6 +59,7 @@ public final class RepeatedByte extends RepeatedField<RepeatedByte, Byte> {
     }
 
     public RepeatedByte set(int index, byte value) {
+        checkMutable();
         checkIndex(index);
         array[index] = value;
         return this;
@@ -97,6 +98,7 @@ public final class RepeatedByte extends RepeatedField<RepeatedByte, Byte> {
 
     @Override
     public void copyFrom(RepeatedByte other) {
+        checkMutable();
         if (other.length > length) {
             extendCapacityTo(other.length);
         }
@@ -149,6 +151,7 @@ public final class RepeatedByte extends RepeatedField<RepeatedByte, Byte> {
      * @return this
      */
     public final RepeatedByte setLength(final int length) {
+        checkMutable();
         if (length - array.length > 0) {
             extendCapacityTo(length);
         }
@@ -172,6 +175,7 @@ public final class RepeatedByte extends RepeatedField<RepeatedByte, Byte> {
      * @return previous length
      */
     public final int addLength(final int length) {
+        checkMutable();
         final int oldLength = this.length;
         final int newLength = oldLength + length;
         final int oldCapacity = array.length;
@@ -228,6 +232,15 @@ public final class RepeatedByte extends RepeatedField<RepeatedByte, Byte> {
         return true;
     }
 
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = 0; i < length; i++) {
+            result = 31 * result + array[i];
+        }
+        return result;
+    }
+
     byte[] array = EMPTY_ARRAY;
     private static final byte[] EMPTY_ARRAY = new byte[0];
 
@@ -0,0 +1,186 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.runtime;
+
+import java.util.Arrays;
+
+/**
+ * Class that represents the data for a repeated enum field. The values are
+ * stored as numbers, so values that are unknown to this version of the
+ * schema get preserved.
+ */
+public final class RepeatedEnum<E extends ProtoEnum> extends RepeatedField<RepeatedEnum<E>, E> {
+
+    public static <E extends ProtoEnum> RepeatedEnum<E> newEmptyInstance(ProtoEnum.EnumConverter<E> converter) {
+        return new RepeatedEnum<>(converter);
+    }
+
+    private RepeatedEnum(ProtoEnum.EnumConverter<E> converter) {
+        if (converter == null) throw new NullPointerException();
+        this.converter = converter;
+    }
+
+    @Override
+    protected void extendCapacityTo(int desiredSize) {
+        array = Arrays.copyOf(array, desiredSize);
+    }
+
+    @Override
+    protected E getValueAt(int index) {
+        return get(index);
+    }
+
+    /**
+     * @return enum value, or null if the number is not known
+     */
+    public E get(int index) {
+        return converter.forNumber(getValue(index));
+    }
+
+    public int getValue(int index) {
+        checkIndex(index);
+        return array[index];
+    }
+
+    public RepeatedEnum<E> set(int index, E value) {
+        return setValue(index, value.getNumber());
+    }
+
+    public RepeatedEnum<E> setValue(int index, int value) {
+        checkMutable();
+        checkIndex(index);
+        array[index] = value;
+        return this;
+    }
+
+    public RepeatedEnum<E> add(final E value) {
+        return addValue(value.getNumber());
+    }
+
+    public RepeatedEnum<E> addValue(final int value) {
+        checkMutable();
+        if (length == array.length) {
+            extendCapacityTo(Math.max(DEFAULT_CAPACITY, length + (length >> 1)));
+        }
+        array[length++] = value;
+        return this;
+    }
+
+    public RepeatedEnum<E> addAllValues(final int[] values) {
+        reserve(values.length);
+        System.arraycopy(values, 0, array, length, values.length);
+        length += values.length;
+        return this;
+    }
+
+    @Override
+    public void addAll(RepeatedEnum<E> values) {
+        reserve(values.length);
+        System.arraycopy(values.array, 0, array, length, values.length);
+        length += values.length;
+    }
+
+    @Override
+    public void copyFrom(RepeatedEnum<E> other) {
+        checkMutable();
+        if (other.length > length) {
+            extendCapacityTo(other.length);
+        }
+        System.arraycopy(other.array, 0, array, 0, other.length);
+        length = other.length;
+    }
+
+    /**
+     * @return total capacity of the internal storage array
+     */
+    @Override
+    public int capacity() {
+        return array.length;
+    }
+
+    /**
+     * Creates a copy of the valid numbers contained in the
+     * internal storage.
+     *
+     * @return copy of valid data
+     */
+    public final int[] toArray() {
+        if (length == 0) return EMPTY_ARRAY;
+        return Arrays.copyOf(array, length);
+    }
+
+    /**
+     * Provides access to the internal storage array. Do not hold
+     * on to this reference as it can change during a resize.
+     * <p>
+     * The array may be larger than the amount of contained data,
+     * but the data is only valid between index 0 and length.
+     *
+     * @return internal storage array
+     */
+    public final int[] array() {
+        return array;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("[");
+        for (int i = 0; i < length; i++) {
+            if (i > 0) builder.append(", ");
+            final E value = converter.forNumber(array[i]);
+            builder.append(value != null ? value.getName() : String.valueOf(array[i]));
+        }
+        return builder.append(']').toString();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RepeatedEnum<?> other = (RepeatedEnum<?>) o;
+
+        if (length != other.length)
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            if (array[i] != other.array[i])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = 0; i < length; i++) {
+            result = 31 * result + array[i];
+        }
+        return result;
+    }
+
+    final ProtoEnum.EnumConverter<E> converter;
+    int[] array = EMPTY_ARRAY;
+    private static final int[] EMPTY_ARRAY = new int[0];
+    private static final int DEFAULT_CAPACITY = 10;
+
+}
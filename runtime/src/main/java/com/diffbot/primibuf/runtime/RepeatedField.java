@@ -75,6 +75,7 @@ abstract class RepeatedField<RepeatedType extends RepeatedField, GenericType> im
      */
     @SuppressWarnings("unchecked")
     public final RepeatedType reserve(int count) {
+        checkMutable();
         final int desiredSize = length + count;
         if (desiredSize - capacity() > 0) { // overflow-conscious
             extendCapacityTo(desiredSize);
@@ -83,9 +84,37 @@ abstract class RepeatedField<RepeatedType extends RepeatedField, GenericType> im
     }
 
     public void clear() {
+        checkMutable();
         length = 0;
     }
 
+    /**
+     * Marks this instance as immutable, so that any subsequent modification
+     * throws an {@link UnsupportedOperationException}. This is used for shared
+     * defaults that get returned by the getters of absent fields, and it can't
+     * be undone.
+     *
+     * @return this
+     */
+    @SuppressWarnings("unchecked")
+    public final RepeatedType makeImmutable() {
+        immutable = true;
+        return (RepeatedType) this;
+    }
+
+    /**
+     * @return true if modifications throw an {@link UnsupportedOperationException}
+     */
+    public final boolean isImmutable() {
+        return immutable;
+    }
+
+    protected final void checkMutable() {
+        if (immutable) {
+            throw new UnsupportedOperationException("Shared default instances can't be modified");
+        }
+    }
+
     protected final void checkIndex(int index) {
         if (index < 0 || index >= length) {
             throw new ArrayIndexOutOfBoundsException();
@@ -101,17 +130,15 @@ abstract class RepeatedField<RepeatedType extends RepeatedField, GenericType> im
     protected abstract void extendCapacityTo(int desiredSize);
 
     protected int length = 0;
+    private boolean immutable = false;
 
     /**
-     * Repeated fields have no immutable state and should not
-     * be used in hashing structures. This method returns
-     * a constant value.
-     *
-     * @return 0
+     * Returns a hash code of the first {@code length} elements that is
+     * consistent with {@link #equals(Object)}. Repeated fields are mutable,
+     * so they should not be modified while they are stored in hashing
+     * structures.
      */
     @Override
-    public final int hashCode() {
-        return 0;
-    }
+    public abstract int hashCode();
 
 }
@@ -0,0 +1,76 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.runtime;
+
+/**
+ * Repeated message field that records the encoded bytes of each element and
+ * decodes them one by one on first access, e.g., {@link #get(int)}.
+ *
+ * @see LazyMessage
+ */
+public final class RepeatedLazyMessage<MessageType extends ProtoMessage<MessageType>> extends RepeatedObject<RepeatedLazyMessage<MessageType>, LazyMessage<MessageType>, MessageType, MessageType> {
+
+    @SuppressWarnings("unchecked")
+    public static <T extends ProtoMessage<T>> RepeatedLazyMessage<T> newEmptyInstance(MessageFactory<T> factory) {
+        return new RepeatedLazyMessage(factory);
+    }
+
+    private RepeatedLazyMessage(MessageFactory<MessageType> factory) {
+        if (factory == null) throw new NullPointerException();
+        this.factory = factory;
+    }
+
+    @Override
+    protected final void setIndex0(int index, MessageType value) {
+        array[index].clear().get().copyFrom(value);
+    }
+
+    @Override
+    protected MessageType getIndex0(int index) {
+        return array[index].get();
+    }
+
+    @Override
+    protected final void clearIndex0(int index) {
+        array[index].clear();
+    }
+
+    @Override
+    protected void copyFrom0(LazyMessage<MessageType> store, LazyMessage<MessageType> other) {
+        store.copyFrom(other);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    protected final LazyMessage<MessageType>[] allocateArray0(int desiredSize) {
+        return (LazyMessage<MessageType>[]) new LazyMessage[desiredSize];
+    }
+
+    @Override
+    protected LazyMessage<MessageType> createEmpty() {
+        return LazyMessage.newInstance(factory);
+    }
+
+    final MessageFactory<MessageType> factory;
+
+}
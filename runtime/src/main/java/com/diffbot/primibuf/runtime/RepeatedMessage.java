@@ -39,9 +39,8 @@ public final class RepeatedMessage<MessageType extends ProtoMessage<MessageType>
     }
 
     @Override
-    @SuppressWarnings("unchecked")
     protected final void setIndex0(int index, MessageType value) {
-        //array[index].copyFrom(value);
+        array[index].copyFrom(value);
     }
 
     @Override
@@ -51,12 +50,12 @@ public final class RepeatedMessage<MessageType extends ProtoMessage<MessageType>
 
     @Override
     protected final void clearIndex0(int index) {
-        //array[index].clear();
+        array[index].clear();
     }
 
     @Override
     protected void copyFrom0(MessageType store, MessageType other) {
-        //store.copyFrom(other);
+        store.copyFrom(other);
     }
 
     @Override
@@ -27,15 +27,28 @@ import java.util.Arrays;
 /**
  * Base class for repeated fields of non-primitive values such as
  * messages, bytes, or strings.
+ * <p>
+ * Element instances get created when a slot is first handed out, so unused
+ * capacity does not allocate. Instances that get released by {@link #clear()}
+ * remain in the array and get reused. All slots below the length are non-null.
  *
  * @author Florian Enner
  * @since 14 Aug 2019
  */
 abstract class RepeatedObject<SubType extends RepeatedObject<SubType, STORE, IN, OUT>, STORE, IN, OUT> extends RepeatedField<SubType, OUT> {
 
+    /**
+     * Hands out the next slot and increments the length. The returned instance
+     * may have been used before and gets cleared when it is released.
+     *
+     * @return the instance stored at the previous length
+     */
     public final STORE next() {
-        reserve(1);
-        return array[length++];
+        checkMutable();
+        if (length == array.length) {
+            growCapacity(length + 1);
+        }
+        return getOrCreate(length++);
     }
 
     @Override
@@ -49,6 +62,7 @@ abstract class RepeatedObject<SubType extends RepeatedObject<SubType, STORE, IN,
     }
 
     public final void set(int index, IN value) {
+        checkMutable();
         checkIndex(index);
         setIndex0(index, value);
     }
@@ -59,14 +73,14 @@ abstract class RepeatedObject<SubType extends RepeatedObject<SubType, STORE, IN,
 
     public final void addAll(IN[] buffer, int offset, int length) {
         reserve(length);
-        for (int i = offset; i < length; i++) {
+        for (int i = offset; i < offset + length; i++) {
             add(buffer[i]);
         }
     }
 
     public final void add(IN value) {
-        reserve(1);
-        setIndex0(length++, value);
+        next();
+        setIndex0(length - 1, value);
     }
 
     public final void copyFrom(IN[] buffer) {
@@ -74,29 +88,25 @@ abstract class RepeatedObject<SubType extends RepeatedObject<SubType, STORE, IN,
     }
 
     public final void copyFrom(IN[] buffer, int offset, int length) {
+        checkMutable();
         this.length = 0;
         addAll(buffer, offset, length);
     }
 
     @Override
     public final void copyFrom(SubType other) {
-        if (other.length > length) {
-            extendCapacityTo(other.length);
-        }
-        length = other.length;
-        for (int i = 0; i < length; i++) {
-            copyFrom0(array[i], other.array[i]);
-        }
+        if (other == this) return;
+        clear();
+        addAll(other);
     }
 
     @Override
     public void addAll(SubType values) {
-        final int newLength = length + values.length;
-        extendCapacityTo(newLength);
-        for (int i = 0; i < values.length; i++) {
-            copyFrom0(array[length + i], values.array[i]);
+        final int count = values.length;
+        reserve(count);
+        for (int i = 0; i < count; i++) {
+            copyFrom0(next(), values.array[i]);
         }
-        this.length = newLength;
     }
 
     @Override
@@ -129,22 +139,55 @@ abstract class RepeatedObject<SubType extends RepeatedObject<SubType, STORE, IN,
         return (a == b) || (a != null && a.equals(b));
     }
 
+    @Override
+    public final int hashCode() {
+        int result = 1;
+        for (int i = 0; i < length; i++) {
+            result = 31 * result + (array[i] == null ? 0 : array[i].hashCode());
+        }
+        return result;
+    }
+
     @Override
     public final void clear() {
+        checkMutable();
         for (int i = 0; i < length; i++) {
             clearIndex0(i);
         }
         length = 0;
     }
 
+    /**
+     * Only copies the references, including released instances that
+     * can be reused. New slots remain empty until they get handed out.
+     */
     @Override
     protected final void extendCapacityTo(int desiredSize) {
         final STORE[] newValues = allocateArray0(desiredSize);
-        System.arraycopy(array, 0, newValues, 0, length);
+        System.arraycopy(array, 0, newValues, 0, Math.min(array.length, desiredSize));
         this.array = newValues;
-        for (int i = length; i < array.length; i++) {
-            array[i] = createEmpty();
+    }
+
+    /**
+     * Grows by the same factor as a generic ArrayList so that adding
+     * elements one at a time has amortized constant cost.
+     */
+    private void growCapacity(final int minCapacity) {
+        final int oldCapacity = array.length;
+        int newCapacity = Math.max(DEFAULT_CAPACITY, oldCapacity + (oldCapacity >> 1));
+        if (newCapacity - minCapacity < 0) { // overflow-conscious
+            newCapacity = minCapacity;
+        }
+        extendCapacityTo(newCapacity);
+    }
+
+    private STORE getOrCreate(final int index) {
+        STORE value = array[index];
+        if (value == null) {
+            value = createEmpty();
+            array[index] = value;
         }
+        return value;
     }
 
     protected abstract void copyFrom0(STORE store, STORE other);
@@ -161,5 +204,6 @@ abstract class RepeatedObject<SubType extends RepeatedObject<SubType, STORE, IN,
 
     final STORE[] EMPTY = allocateArray0(0);
     protected STORE[] array = EMPTY;
+    private static final int DEFAULT_CAPACITY = 10;
 
 }
@@ -0,0 +1,334 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package com.diffbot.primibuf.runtime;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static com.diffbot.primibuf.runtime.WireFormat.*;
+
+/**
+ * Sink that writes to an {@link OutputStream} or a {@link WritableByteChannel}
+ * through a fixed-size buffer that gets flushed whenever it runs full, so messages
+ * of any size can be encoded in constant buffer memory. Based on
+ * {@code CodedOutputStream.OutputStreamEncoder}.
+ * <p>
+ * The buffer fields of {@link ProtoSink} refer to the current chunk, so all
+ * small writes use the array backed fast paths of the parent class. Writes
+ * that are larger than the remaining space get split across chunks.
+ * <p>
+ * The buffer gets reused when the output is changed, so a single instance per
+ * thread encodes without allocating. Data remains buffered until {@link #flush()}
+ * is called.
+ * <p>
+ * Setting an array as the output writes directly into the array, i.e., the sink
+ * behaves like an array backed {@link ProtoSink} until the output gets changed
+ * back to a stream or channel.
+ * <p>
+ * Use {@link ProtoSink#newInstance(OutputStream)} or {@link ProtoSink#newInstance(WritableByteChannel)}
+ * to create instances.
+ */
+public final class StreamSink extends ProtoSink {
+
+    StreamSink(final OutputStream output, final WritableByteChannel channel, final int bufferSize) {
+        if (output == null && channel == null) throw new NullPointerException("output");
+        this.window = new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)];
+        this.output = output;
+        this.channel = channel;
+        this.chunk = channel != null ? ByteBuffer.wrap(window) : null;
+        useWindow();
+    }
+
+    /**
+     * Changes the output to a different stream and discards any data that
+     * has not been flushed yet.
+     *
+     * @return this
+     */
+    public StreamSink setOutput(final OutputStream output) {
+        if (output == null) throw new NullPointerException("output");
+        this.output = output;
+        this.channel = null;
+        useWindow();
+        return reset();
+    }
+
+    /**
+     * Changes the output to a different channel and discards any data that
+     * has not been flushed yet.
+     *
+     * @return this
+     */
+    public StreamSink setOutput(final WritableByteChannel channel) {
+        if (channel == null) throw new NullPointerException("channel");
+        if (chunk == null) {
+            chunk = ByteBuffer.wrap(window);
+        }
+        this.output = null;
+        this.channel = channel;
+        useWindow();
+        return reset();
+    }
+
+    /**
+     * Changes the output to the specified range of the array and discards any data
+     * that has not been flushed yet. Bytes get written directly into the array, and
+     * writing more than the range can hold throws an {@link OutOfSpaceException}.
+     *
+     * @return this
+     */
+    @Override
+    public StreamSink setOutput(final byte[] buffer, final int offset, final int length) {
+        super.setOutput(buffer, offset, length);
+        this.output = null;
+        this.channel = null;
+        this.totalBytesFlushed = 0;
+        return this;
+    }
+
+    private void useWindow() {
+        this.buffer = window;
+        this.offset = 0;
+        this.position = 0;
+        this.limit = window.length;
+    }
+
+    private boolean isArrayOutput() {
+        return output == null && channel == null;
+    }
+
+    /**
+     * Discards any data that has not been flushed yet and resets the position
+     *
+     * @return this
+     */
+    @Override
+    public StreamSink reset() {
+        position = offset;
+        totalBytesFlushed = 0;
+        return this;
+    }
+
+    /**
+     * @return number of bytes that have been written since the output was set,
+     * including the bytes that are still buffered
+     */
+    @Override
+    public int position() {
+        return (int) (totalBytesFlushed + position - offset);
+    }
+
+    /**
+     * Streams have no fixed size, so this is only supported when writing to an array
+     */
+    @Override
+    public int spaceLeft() {
+        if (!isArrayOutput()) {
+            throw new UnsupportedOperationException("spaceLeft() can only be called on sinks that write to a flat array.");
+        }
+        return super.spaceLeft();
+    }
+
+    /**
+     * Writes all buffered data to the output and flushes the output stream.
+     * Does nothing when writing to an array.
+     */
+    public void flush() throws IOException {
+        if (isArrayOutput()) {
+            return;
+        }
+        flushBuffer();
+        if (output != null) {
+            output.flush();
+        }
+    }
+
+    @Override
+    public void writeRawByte(final byte value) throws IOException {
+        if (position == limit) {
+            flushBuffer();
+        }
+        buffer[position++] = value;
+    }
+
+    @Override
+    public void writeRawBytes(final byte[] value, int offset, int length) throws IOException {
+        if (length <= limit - position) {
+            System.arraycopy(value, offset, buffer, position, length);
+            position += length;
+            return;
+        }
+
+        // Fill the current chunk, then write large arrays directly to streams
+        final int space = limit - position;
+        System.arraycopy(value, offset, buffer, position, space);
+        position = limit;
+        offset += space;
+        length -= space;
+        flushBuffer();
+
+        if (output != null && length > limit - this.offset) {
+            output.write(value, offset, length);
+            totalBytesFlushed += length;
+            return;
+        }
+
+        // Channels need a ByteBuffer, so the rest gets copied through the chunk
+        while (length > 0) {
+            final int n = Math.min(length, limit - position);
+            System.arraycopy(value, offset, buffer, position, n);
+            position += n;
+            offset += n;
+            length -= n;
+            if (position == limit) {
+                flushBuffer();
+            }
+        }
+    }
+
+    /**
+     * Strings that don't fit into the chunk get encoded into a reusable
+     * scratch array first.
+     */
+    @Override
+    void writeRawUtf8(final CharSequence value, final int encodedLength) throws IOException {
+        if (encodedLength <= limit - offset) {
+            super.writeRawUtf8(value, encodedLength);
+            return;
+        }
+        if (scratch.length < encodedLength) {
+            scratch = new byte[Math.max(encodedLength, scratch.length * 2)];
+        }
+        Utf8.encode(value, scratch, 0);
+        writeRawBytes(scratch, 0, encodedLength);
+    }
+
+    @Override
+    void writeRawLittleEndianInts(final int[] values, int offset, int count) throws IOException {
+        while (count > 0) {
+            final int n = Math.min(count, (limit - position) / FIXED32_SIZE);
+            if (n == 0) {
+                flushBuffer();
+                continue;
+            }
+            LittleEndian.copyInts(values, offset, buffer, position, n);
+            position += FIXED32_SIZE * n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    void writeRawLittleEndianLongs(final long[] values, int offset, int count) throws IOException {
+        while (count > 0) {
+            final int n = Math.min(count, (limit - position) / FIXED64_SIZE);
+            if (n == 0) {
+                flushBuffer();
+                continue;
+            }
+            LittleEndian.copyLongs(values, offset, buffer, position, n);
+            position += FIXED64_SIZE * n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    void writeRawLittleEndianFloats(final float[] values, int offset, int count) throws IOException {
+        while (count > 0) {
+            final int n = Math.min(count, (limit - position) / FIXED32_SIZE);
+            if (n == 0) {
+                flushBuffer();
+                continue;
+            }
+            LittleEndian.copyFloats(values, offset, buffer, position, n);
+            position += FIXED32_SIZE * n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    void writeRawLittleEndianDoubles(final double[] values, int offset, int count) throws IOException {
+        while (count > 0) {
+            final int n = Math.min(count, (limit - position) / FIXED64_SIZE);
+            if (n == 0) {
+                flushBuffer();
+                continue;
+            }
+            LittleEndian.copyDoubles(values, offset, buffer, position, n);
+            position += FIXED64_SIZE * n;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    /**
+     * Flushes the chunk if there is not enough space left. Callers never
+     * request more than the chunk size, see {@link #MIN_BUFFER_SIZE}.
+     */
+    @Override
+    void requireSpace(final int length) throws IOException {
+        if (limit - position < length) {
+            flushBuffer();
+        }
+        super.requireSpace(length);
+    }
+
+    private void flushBuffer() throws IOException {
+        if (isArrayOutput()) {
+            throw new OutOfSpaceException(position, limit);
+        }
+        final int length = position - offset;
+        if (length == 0) {
+            return;
+        }
+        if (output != null) {
+            output.write(buffer, offset, length);
+        } else {
+            final ByteBuffer chunk = this.chunk;
+            ((Buffer) chunk).clear();
+            ((Buffer) chunk).limit(length);
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        }
+        totalBytesFlushed += length;
+        position = offset;
+    }
+
+    private final byte[] window;
+    private OutputStream output;
+    private WritableByteChannel channel;
+    private ByteBuffer chunk;
+    private byte[] scratch = ProtoUtil.EMPTY_BYTE_ARRAY;
+    private long totalBytesFlushed = 0;
+
+    static final int DEFAULT_BUFFER_SIZE = 4096;
+    private static final int MIN_BUFFER_SIZE = MAX_VARINT64_SIZE;
+
+}
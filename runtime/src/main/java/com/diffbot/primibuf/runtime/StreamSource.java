@@ -0,0 +1,403 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.runtime;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static com.diffbot.primibuf.runtime.InvalidProtocolBufferException.*;
+import static com.diffbot.primibuf.runtime.WireFormat.*;
+
+/**
+ * Source that reads from an {@link InputStream} through a fixed-size window
+ * that gets refilled transparently, so messages of any size can be decoded
+ * in constant buffer memory. Based on {@code CodedInputStream.StreamDecoder}.
+ * <p>
+ * The buffer fields of {@link ProtoSource} refer to the current window, and
+ * {@code startPos} is the negative number of bytes that have been discarded from
+ * the window. Thus, {@code pos - startPos} remains the total number of bytes read,
+ * and the limit bookkeeping of the parent class works unchanged.
+ * <p>
+ * Rewinding is only possible as long as the target position is still buffered.
+ * Refilling keeps the bytes after the most recent {@link #getPosition()} call
+ * around for as long as they fit into the window.
+ * <p>
+ * Use {@link ProtoSource#newInstance(InputStream)} to create instances.
+ */
+public final class StreamSource extends ProtoSource {
+
+    StreamSource(final InputStream input, final int bufferSize) {
+        super(new byte[Math.max(bufferSize, MIN_BUFFER_SIZE)], 0, 0);
+        if (input == null) throw new NullPointerException("input");
+        this.input = input;
+    }
+
+    /**
+     * Changes the input to a different stream and resets the internal state.
+     * The window gets reused, so any buffered data is discarded.
+     *
+     * @return this
+     */
+    public StreamSource setInput(final InputStream input) {
+        if (input == null) throw new NullPointerException("input");
+        this.input = input;
+        this.mark = -1;
+        resetInternalState(0, 0);
+        return this;
+    }
+
+    /**
+     * Changes the input to the specified range of the array. The array gets read
+     * through the window like any other stream.
+     *
+     * @return this
+     */
+    @Override
+    public StreamSource setInput(final byte[] buffer, final int offset, final int len) {
+        return setInput(new ByteArrayInputStream(buffer, offset, len));
+    }
+
+    @Override
+    public String readString() throws IOException {
+        final int size = readRawVarint32();
+        if (size > 0 && size <= buffer.length) {
+            if (size > limit - pos) {
+                refillBuffer(size);
+            }
+            final String result = Utf8.decode(buffer, pos, size);
+            pos += size;
+            return result;
+        }
+        if (size == 0) {
+            return "";
+        }
+        final byte[] bytes = readRawBytes(size);
+        return Utf8.decode(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void readBytes(final ByteSlice store) throws IOException {
+        final int size = readRawVarint32();
+        if (size >= 0 && size <= buffer.length) {
+            if (size > limit - pos) {
+                refillBuffer(size);
+            }
+            final byte[] bytes = store.reserveStorage(size);
+            System.arraycopy(buffer, pos, bytes, 0, size);
+            store.setView(bytes, 0, size);
+            pos += size;
+            return;
+        }
+        final byte[] bytes = readRawBytes(size);
+        store.setView(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void readMessage(final LazyMessage<?> store) throws IOException {
+        final int size = readRawVarint32();
+        if (size >= 0 && size <= buffer.length) {
+            if (size > limit - pos) {
+                refillBuffer(size);
+            }
+            final byte[] bytes = store.reserveStorage(size);
+            System.arraycopy(buffer, pos, bytes, 0, size);
+            store.setView(bytes, 0, size);
+            pos += size;
+            return;
+        }
+        final byte[] bytes = readRawBytes(size);
+        store.setView(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public String readInternedString() throws IOException {
+        final int size = readRawVarint32();
+        if (size > 0 && size <= buffer.length) {
+            if (size > limit - pos) {
+                refillBuffer(size);
+            }
+            final String result = stringInterner.intern(buffer, pos, size);
+            pos += size;
+            return result;
+        }
+        if (size == 0) {
+            return "";
+        }
+        final byte[] bytes = readRawBytes(size);
+        return stringInterner.intern(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void readString(final Utf8String store) throws IOException {
+        final int size = readRawVarint32();
+        if (size >= 0 && size <= buffer.length) {
+            if (size > limit - pos) {
+                refillBuffer(size);
+            }
+            final byte[] bytes = store.reserveStorage(size);
+            System.arraycopy(buffer, pos, bytes, 0, size);
+            store.setView(bytes, 0, size);
+            pos += size;
+            return;
+        }
+        final byte[] bytes = readRawBytes(size);
+        store.setView(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public int readRawLittleEndian32() throws IOException {
+        if (limit - pos < FIXED32_SIZE) {
+            refillBuffer(FIXED32_SIZE);
+        }
+        return super.readRawLittleEndian32();
+    }
+
+    @Override
+    public long readRawLittleEndian64() throws IOException {
+        if (limit - pos < FIXED64_SIZE) {
+            refillBuffer(FIXED64_SIZE);
+        }
+        return super.readRawLittleEndian64();
+    }
+
+    @Override
+    int countPackedVarints(final int length) throws IOException {
+        if (length > buffer.length) {
+            return -1; // doesn't fit into the window
+        }
+        if (length > limit - pos) {
+            refillBuffer(length);
+        }
+        return countVarints(buffer, pos, length);
+    }
+
+    /**
+     * The stream may end at any point, so the length only gets checked against
+     * a pushed limit. Allocations are bounded by the window and grow with the
+     * data that actually arrives.
+     */
+    @Override
+    int getAllocatableBytes(final int length) throws IOException {
+        if (length > currentLimit - getTotalBytesRead()) {
+            throw truncatedMessage();
+        }
+        return Math.min(length, Math.max(limit - pos, buffer.length));
+    }
+
+    @Override
+    void readRawLittleEndianInts(final int[] dst, int offset, int count) throws IOException {
+        while (count > 0) {
+            if (limit - pos < FIXED32_SIZE) {
+                refillBuffer(FIXED32_SIZE);
+            }
+            final int n = Math.min(count, (limit - pos) / FIXED32_SIZE);
+            LittleEndian.copyInts(buffer, pos, dst, offset, n);
+            pos += n * FIXED32_SIZE;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    void readRawLittleEndianLongs(final long[] dst, int offset, int count) throws IOException {
+        while (count > 0) {
+            if (limit - pos < FIXED64_SIZE) {
+                refillBuffer(FIXED64_SIZE);
+            }
+            final int n = Math.min(count, (limit - pos) / FIXED64_SIZE);
+            LittleEndian.copyLongs(buffer, pos, dst, offset, n);
+            pos += n * FIXED64_SIZE;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    void readRawLittleEndianFloats(final float[] dst, int offset, int count) throws IOException {
+        while (count > 0) {
+            if (limit - pos < FIXED32_SIZE) {
+                refillBuffer(FIXED32_SIZE);
+            }
+            final int n = Math.min(count, (limit - pos) / FIXED32_SIZE);
+            LittleEndian.copyFloats(buffer, pos, dst, offset, n);
+            pos += n * FIXED32_SIZE;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    void readRawLittleEndianDoubles(final double[] dst, int offset, int count) throws IOException {
+        while (count > 0) {
+            if (limit - pos < FIXED64_SIZE) {
+                refillBuffer(FIXED64_SIZE);
+            }
+            final int n = Math.min(count, (limit - pos) / FIXED64_SIZE);
+            LittleEndian.copyDoubles(buffer, pos, dst, offset, n);
+            pos += n * FIXED64_SIZE;
+            offset += n;
+            count -= n;
+        }
+    }
+
+    @Override
+    public byte readRawByte() throws IOException {
+        if (pos == limit) {
+            refillBuffer(1);
+        }
+        return buffer[pos++];
+    }
+
+    @Override
+    public byte[] readRawBytes(final int length) throws IOException {
+        if (length <= limit - pos) {
+            // buffered, empty, or negative
+            return super.readRawBytes(length);
+        }
+
+        final int bytesUntilLimit = currentLimit - getTotalBytesRead();
+        if (length > bytesUntilLimit) {
+            // Read to the end of the current sub-message before failing
+            skipRawBytes(bytesUntilLimit);
+            throw truncatedMessage();
+        }
+
+        if (length <= buffer.length) {
+            refillBuffer(length);
+            return super.readRawBytes(length);
+        }
+
+        // Larger than the window, so copy the buffered bytes and read
+        // the rest straight from the stream.
+        final byte[] bytes = new byte[length];
+        int copied = limit - pos;
+        System.arraycopy(buffer, pos, bytes, 0, copied);
+        startPos -= limit;
+        pos = 0;
+        limit = 0;
+        while (copied < length) {
+            final int n = input.read(bytes, copied, length - copied);
+            if (n == -1) {
+                throw truncatedMessage();
+            }
+            copied += n;
+            startPos -= n;
+        }
+        return bytes;
+    }
+
+    @Override
+    public void skipRawBytes(final int length) throws IOException {
+        if (length >= 0 && length <= (limit - pos)) {
+            pos += length;
+            return;
+        }
+        if (length < 0) {
+            throw negativeSize();
+        }
+
+        final int bytesUntilLimit = currentLimit - getTotalBytesRead();
+        int remaining = Math.min(length, bytesUntilLimit);
+        while (remaining > 0) {
+            if (pos == limit && !tryRefillBuffer(1)) {
+                break;
+            }
+            final int n = Math.min(remaining, limit - pos);
+            pos += n;
+            remaining -= n;
+        }
+        if (remaining > 0 || length > bytesUntilLimit) {
+            throw truncatedMessage();
+        }
+    }
+
+    @Override
+    public boolean isAtEnd() throws IOException {
+        return pos == limit && !tryRefillBuffer(1);
+    }
+
+    @Override
+    public int getPosition() {
+        return mark = super.getPosition();
+    }
+
+    @Override
+    public void rewindToPosition(final int position) {
+        if (startPos + position < 0) {
+            throw new IllegalStateException("Position " + position + " is no longer buffered. Consider increasing the buffer size.");
+        }
+        super.rewindToPosition(position);
+    }
+
+    private void refillBuffer(final int n) throws IOException {
+        if (!tryRefillBuffer(n)) {
+            throw truncatedMessage();
+        }
+    }
+
+    /**
+     * Tries to get at least n bytes into the window without exceeding the current limit
+     *
+     * @param n number of required bytes. Must be smaller than the window size.
+     * @return true if successful, false if the stream or the current limit has been reached
+     */
+    private boolean tryRefillBuffer(final int n) throws IOException {
+        if (n > currentLimit - getTotalBytesRead()) {
+            return false;
+        }
+
+        // Discard the consumed bytes, but keep the ones after the last
+        // marked position if they don't take up the required space.
+        final int needed = n - (limit - pos);
+        final int markIndex = startPos + mark;
+        final int keep = (markIndex >= 0 && markIndex < pos && buffer.length - (limit - markIndex) >= needed) ? markIndex : pos;
+        if (keep > 0) {
+            System.arraycopy(buffer, keep, buffer, 0, limit - keep);
+            startPos -= keep;
+            pos -= keep;
+            limit -= keep;
+        }
+
+        while (limit - pos < n) {
+            final int bytesRead = input.read(buffer, limit, buffer.length - limit);
+            if (bytesRead == 0 || bytesRead < -1 || bytesRead > buffer.length - limit) {
+                throw new IllegalStateException(input.getClass() + "#read(byte[]) returned invalid result: " + bytesRead
+                        + "\nThe InputStream implementation is buggy.");
+            }
+            if (bytesRead == -1) {
+                return false;
+            }
+            limit += bytesRead;
+            recomputeBufferSizeAfterLimit();
+        }
+        return true;
+    }
+
+    static final int DEFAULT_BUFFER_SIZE = 4096;
+    private static final int MIN_BUFFER_SIZE = MAX_VARINT_SIZE;
+
+    private InputStream input;
+    private int mark = -1;
+
+}
@@ -0,0 +1,193 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.runtime;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache that maps the raw UTF-8 bytes of frequently repeated strings,
+ * e.g., type names or language codes, to a canonical {@link String} instance.
+ *
+ * The table is direct mapped and lock-free, i.e., each entry is immutable and gets
+ * published through an {@link AtomicReferenceArray}, and a colliding string simply
+ * replaces the previous entry. A hit only hashes and compares the bytes and does
+ * not allocate. Instances may be shared between threads and sources.
+ */
+public final class StringInterner {
+
+    /**
+     * @return interner that is used by sources that don't have one set explicitly
+     */
+    public static StringInterner getDefaultInstance() {
+        return DEFAULT_INSTANCE;
+    }
+
+    /**
+     * @param capacity number of cached strings. Gets rounded up to the next power of two.
+     * @return new interner that caches strings of up to 64 bytes
+     */
+    public static StringInterner newInstance(int capacity) {
+        return newInstance(capacity, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param capacity  number of cached strings. Gets rounded up to the next power of two.
+     * @param maxLength longer strings get decoded without being cached
+     * @return new interner
+     */
+    public static StringInterner newInstance(int capacity, int maxLength) {
+        if (capacity <= 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity must be within [1, " + MAX_CAPACITY + "]");
+        }
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("maxLength must not be negative");
+        }
+        return new StringInterner(capacity, maxLength);
+    }
+
+    private StringInterner(int capacity, int maxLength) {
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return the canonical string for the UTF-8 encoded bytes
+     * @throws InvalidProtocolBufferException if the bytes are not valid UTF-8
+     */
+    public String intern(final byte[] bytes, final int offset, final int length) throws InvalidProtocolBufferException {
+        if (length > maxLength) {
+            return Utf8.decode(bytes, offset, length);
+        }
+
+        final int hash = hash(bytes, offset, length);
+        final int index = (hash ^ (hash >>> 16)) & mask;
+        final Entry entry = table.get(index);
+        if (entry != null && entry.hash == hash && entry.matches(bytes, offset, length)) {
+            hits.increment();
+            return entry.value;
+        }
+
+        misses.increment();
+        final String value = Utf8.decode(bytes, offset, length);
+        final byte[] key = new byte[length];
+        System.arraycopy(bytes, offset, key, 0, length);
+        table.lazySet(index, new Entry(key, hash, value));
+        return value;
+    }
+
+    /**
+     * @return number of strings that were served from the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of strings that had to be decoded, including replaced entries
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of slots in the table
+     */
+    public int getCapacity() {
+        return table.length();
+    }
+
+    /**
+     * Resets the hit and miss counters
+     */
+    public void resetStatistics() {
+        hits.reset();
+        misses.reset();
+    }
+
+    /**
+     * Removes all cached strings
+     */
+    public void clear() {
+        for (int i = 0; i < table.length(); i++) {
+            table.set(i, null);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StringInterner{" +
+                "capacity=" + getCapacity() +
+                ", hits=" + getHitCount() +
+                ", misses=" + getMissCount() +
+                '}';
+    }
+
+    private static int hash(final byte[] bytes, final int offset, final int length) {
+        int hash = length;
+        final int limit = offset + length;
+        for (int i = offset; i < limit; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+
+    private static final class Entry {
+
+        Entry(byte[] bytes, int hash, String value) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.value = value;
+        }
+
+        boolean matches(final byte[] other, final int offset, final int length) {
+            if (bytes.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] != other[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        final byte[] bytes;
+        final int hash;
+        final String value;
+
+    }
+
+    private final AtomicReferenceArray<Entry> table;
+    private final int mask;
+    private final int maxLength;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static final int DEFAULT_MAX_LENGTH = 64;
+    private static final int MAX_CAPACITY = 1 << 24;
+    private static final StringInterner DEFAULT_INSTANCE = newInstance(4096);
+
+}
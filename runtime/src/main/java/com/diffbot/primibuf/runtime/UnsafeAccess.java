@@ -0,0 +1,231 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package com.diffbot.primibuf.runtime;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * Provides access to sun.misc.Unsafe for word-sized reads from byte arrays,
+ * bulk copies between primitive arrays, and offset based field access.
+ * Callers need to check {@link #isAvailable()} and provide a fallback for
+ * platforms where it can't be accessed.
+ * <p>
+ * Unsafe is looked up reflectively and called through constant method handles,
+ * so that the runtime compiles without warnings about internal proprietary APIs.
+ * The JIT inlines constant handles, so this is as fast as calling Unsafe directly.
+ */
+final class UnsafeAccess {
+
+    static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Reads 8 bytes in native byte order. Bounds are not checked.
+     */
+    static long getLong(byte[] array, int index) {
+        try {
+            return (long) GET_LONG.invokeExact((Object) array, BYTE_ARRAY_OFFSET + index);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Copies raw memory between primitive arrays. Offsets are in bytes and include
+     * the array base offset. Bounds are not checked.
+     */
+    static void copyMemory(Object src, long srcOffset, Object dst, long dstOffset, long numBytes) {
+        try {
+            COPY_MEMORY.invokeExact(src, srcOffset, dst, dstOffset, numBytes);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    /**
+     * Returns the offset that identifies an instance field in the put and get methods below
+     */
+    static long objectFieldOffset(Field field) {
+        try {
+            return (long) OBJECT_FIELD_OFFSET.invokeExact(field);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static int getInt(Object object, long offset) {
+        try {
+            return (int) GET_INT.invokeExact(object, offset);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void putInt(Object object, long offset, int value) {
+        try {
+            PUT_INT.invokeExact(object, offset, value);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void putLong(Object object, long offset, long value) {
+        try {
+            PUT_LONG.invokeExact(object, offset, value);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void putFloat(Object object, long offset, float value) {
+        try {
+            PUT_FLOAT.invokeExact(object, offset, value);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void putDouble(Object object, long offset, double value) {
+        try {
+            PUT_DOUBLE.invokeExact(object, offset, value);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void putBoolean(Object object, long offset, boolean value) {
+        try {
+            PUT_BOOLEAN.invokeExact(object, offset, value);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static Object getObject(Object object, long offset) {
+        try {
+            return (Object) GET_OBJECT.invokeExact(object, offset);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    static void putObject(Object object, long offset, Object value) {
+        try {
+            PUT_OBJECT.invokeExact(object, offset, value);
+        } catch (Throwable e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable e) {
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        if (e instanceof Error) {
+            throw (Error) e;
+        }
+        throw new IllegalStateException(e);
+    }
+
+    private static Object loadUnsafe() {
+        try {
+            final Field theUnsafe = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            return theUnsafe.get(null);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return handle that is bound to the Unsafe instance, or null if it can't be accessed
+     */
+    private static MethodHandle findMethod(String name, Class<?> returnType, Class<?>... parameterTypes) {
+        if (UNSAFE == null) {
+            return null;
+        }
+        try {
+            return MethodHandles.lookup()
+                    .findVirtual(UNSAFE.getClass(), name, MethodType.methodType(returnType, parameterTypes))
+                    .bindTo(UNSAFE);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private static long arrayBaseOffset(Class<?> arrayClass) {
+        try {
+            return (int) ARRAY_BASE_OFFSET.invokeExact(arrayClass);
+        } catch (Throwable e) {
+            return -1;
+        }
+    }
+
+    private static boolean checkAvailable() {
+        if (GET_LONG == null || COPY_MEMORY == null || OBJECT_FIELD_OFFSET == null || GET_INT == null
+                || PUT_INT == null || PUT_LONG == null || PUT_FLOAT == null || PUT_DOUBLE == null
+                || PUT_BOOLEAN == null || GET_OBJECT == null || PUT_OBJECT == null || ARRAY_BASE_OFFSET == null) {
+            return false;
+        }
+        try {
+            // make sure that the required methods work
+            final long byteArrayOffset = arrayBaseOffset(byte[].class);
+            final long longArrayOffset = arrayBaseOffset(long[].class);
+            final long value = (long) GET_LONG.invokeExact((Object) new byte[8], byteArrayOffset);
+            COPY_MEMORY.invokeExact((Object) new byte[8], byteArrayOffset, (Object) new long[1], longArrayOffset, 8L);
+            return byteArrayOffset >= 0 && longArrayOffset >= 0 && value == 0;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    private UnsafeAccess() {
+    }
+
+    private static final Object UNSAFE = loadUnsafe();
+    private static final MethodHandle GET_LONG = findMethod("getLong", long.class, Object.class, long.class);
+    private static final MethodHandle COPY_MEMORY = findMethod("copyMemory", void.class, Object.class, long.class, Object.class, long.class, long.class);
+    private static final MethodHandle OBJECT_FIELD_OFFSET = findMethod("objectFieldOffset", long.class, Field.class);
+    private static final MethodHandle GET_INT = findMethod("getInt", int.class, Object.class, long.class);
+    private static final MethodHandle PUT_INT = findMethod("putInt", void.class, Object.class, long.class, int.class);
+    private static final MethodHandle PUT_LONG = findMethod("putLong", void.class, Object.class, long.class, long.class);
+    private static final MethodHandle PUT_FLOAT = findMethod("putFloat", void.class, Object.class, long.class, float.class);
+    private static final MethodHandle PUT_DOUBLE = findMethod("putDouble", void.class, Object.class, long.class, double.class);
+    private static final MethodHandle PUT_BOOLEAN = findMethod("putBoolean", void.class, Object.class, long.class, boolean.class);
+    private static final MethodHandle GET_OBJECT = findMethod("getObject", Object.class, Object.class, long.class);
+    private static final MethodHandle PUT_OBJECT = findMethod("putObject", void.class, Object.class, long.class, Object.class);
+    private static final MethodHandle ARRAY_BASE_OFFSET = findMethod("arrayBaseOffset", int.class, Class.class);
+    private static final boolean AVAILABLE = checkAvailable();
+
+    static final long BYTE_ARRAY_OFFSET = AVAILABLE ? arrayBaseOffset(byte[].class) : -1;
+    static final long INT_ARRAY_OFFSET = AVAILABLE ? arrayBaseOffset(int[].class) : -1;
+    static final long LONG_ARRAY_OFFSET = AVAILABLE ? arrayBaseOffset(long[].class) : -1;
+    static final long FLOAT_ARRAY_OFFSET = AVAILABLE ? arrayBaseOffset(float[].class) : -1;
+    static final long DOUBLE_ARRAY_OFFSET = AVAILABLE ? arrayBaseOffset(double[].class) : -1;
+
+}
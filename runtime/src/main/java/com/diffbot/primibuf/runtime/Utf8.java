@@ -0,0 +1,240 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.runtime;
+
+import static com.diffbot.primibuf.runtime.InvalidProtocolBufferException.*;
+
+/**
+ * UTF-8 decoding that is optimized for mostly ASCII data, e.g., ids, URIs, or
+ * type names. Pure ASCII runs are detected 8 bytes at a time and widened directly
+ * without going through a {@link java.nio.charset.CharsetDecoder}. Everything
+ * else falls back to a hand-written decoder that rejects malformed input as
+ * required by proto3.
+ * <p>
+ * Encoding writes directly into the target array without an intermediate copy.
+ */
+final class Utf8 {
+
+    /**
+     * @return decoded string
+     * @throws InvalidProtocolBufferException if the bytes are not valid UTF-8
+     */
+    @SuppressWarnings("deprecation")
+    static String decode(final byte[] bytes, final int offset, final int length) throws InvalidProtocolBufferException {
+        final int asciiLength = countAscii(bytes, offset, length);
+        if (asciiLength == length) {
+            // zero hibyte widens every byte to a char
+            return new String(bytes, 0, offset, length);
+        }
+        return decodeNonAscii(bytes, offset, length, asciiLength);
+    }
+
+    /**
+     * @return number of leading bytes that are in the ASCII range
+     */
+    static int countAscii(final byte[] bytes, final int offset, final int length) {
+        int i = offset;
+        final int limit = offset + length;
+        if (UnsafeAccess.isAvailable()) {
+            // The mask doesn't depend on the byte order, so native words are fine
+            for (; limit - i >= 8; i += 8) {
+                if ((UnsafeAccess.getLong(bytes, i) & ASCII_MASK_LONG) != 0) {
+                    break;
+                }
+            }
+        } else {
+            for (; limit - i >= 8; i += 8) {
+                if ((bytes[i] | bytes[i + 1] | bytes[i + 2] | bytes[i + 3]
+                        | bytes[i + 4] | bytes[i + 5] | bytes[i + 6] | bytes[i + 7]) < 0) {
+                    break;
+                }
+            }
+        }
+        while (i < limit && bytes[i] >= 0) {
+            i++;
+        }
+        return i - offset;
+    }
+
+    private static String decodeNonAscii(final byte[] bytes, final int offset, final int length, final int asciiLength)
+            throws InvalidProtocolBufferException {
+        // The number of chars can never exceed the number of bytes
+        final char[] chars = new char[length];
+        int n = 0;
+        int i = offset;
+        final int limit = offset + length;
+
+        while (n < asciiLength) {
+            chars[n++] = (char) bytes[i++];
+        }
+
+        while (i < limit) {
+            final byte b1 = bytes[i++];
+            if (b1 >= 0) {
+                chars[n++] = (char) b1;
+                // stay in a tight loop for the rest of the ascii run
+                while (i < limit && bytes[i] >= 0) {
+                    chars[n++] = (char) bytes[i++];
+                }
+
+            } else if (b1 < (byte) 0xE0) {
+                // two bytes (0xC2-0xDF), where 0xC0 and 0xC1 are overlong encodings
+                if (i >= limit || b1 < (byte) 0xC2) {
+                    throw invalidUtf8();
+                }
+                final byte b2 = bytes[i++];
+                if (isNotTrailingByte(b2)) {
+                    throw invalidUtf8();
+                }
+                chars[n++] = (char) (((b1 & 0x1F) << 6) | trailingByteValue(b2));
+
+            } else if (b1 < (byte) 0xF0) {
+                // three bytes without overlong encodings (0xE0 0x80-0x9F) and surrogates (0xED 0xA0-0xBF)
+                if (limit - i < 2) {
+                    throw invalidUtf8();
+                }
+                final byte b2 = bytes[i++];
+                final byte b3 = bytes[i++];
+                if (isNotTrailingByte(b2)
+                        || (b1 == (byte) 0xE0 && b2 < (byte) 0xA0)
+                        || (b1 == (byte) 0xED && b2 >= (byte) 0xA0)
+                        || isNotTrailingByte(b3)) {
+                    throw invalidUtf8();
+                }
+                chars[n++] = (char) (((b1 & 0x0F) << 12) | (trailingByteValue(b2) << 6) | trailingByteValue(b3));
+
+            } else {
+                // four bytes that encode a supplementary code point (U+10000-U+10FFFF)
+                if (limit - i < 3) {
+                    throw invalidUtf8();
+                }
+                final byte b2 = bytes[i++];
+                final byte b3 = bytes[i++];
+                final byte b4 = bytes[i++];
+                // Checks that b1 is within 0xF0-0xF4 and that the code point is within range
+                if (isNotTrailingByte(b2)
+                        || (((b1 << 28) + (b2 - (byte) 0x90)) >> 30) != 0
+                        || isNotTrailingByte(b3)
+                        || isNotTrailingByte(b4)) {
+                    throw invalidUtf8();
+                }
+                final int codePoint = ((b1 & 0x07) << 18)
+                        | (trailingByteValue(b2) << 12)
+                        | (trailingByteValue(b3) << 6)
+                        | trailingByteValue(b4);
+                chars[n++] = Character.highSurrogate(codePoint);
+                chars[n++] = Character.lowSurrogate(codePoint);
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    /**
+     * @return number of bytes of the UTF-8 encoding, or -1 if the sequence contains
+     * unpaired surrogates that can't be encoded
+     */
+    static int encodedLength(final CharSequence sequence) {
+        final int length = sequence.length();
+        int encodedLength = length;
+        int i = 0;
+
+        // ASCII maps to a single byte
+        while (i < length && sequence.charAt(i) < 0x80) {
+            i++;
+        }
+
+        for (; i < length; i++) {
+            final char c = sequence.charAt(i);
+            if (c < 0x800) {
+                encodedLength += (0x7f - c) >>> 31; // 2 bytes for non-ASCII
+            } else if (Character.isSurrogate(c)) {
+                // a valid pair takes 4 bytes for 2 chars
+                if (Character.isLowSurrogate(c) || i + 1 == length || !Character.isLowSurrogate(sequence.charAt(i + 1))) {
+                    return -1;
+                }
+                encodedLength += 2;
+                i++;
+            } else {
+                encodedLength += 2;
+            }
+        }
+
+        if (encodedLength < length) {
+            throw new IllegalArgumentException("UTF-8 length does not fit in int: " + (encodedLength + (1L << 32)));
+        }
+        return encodedLength;
+    }
+
+    /**
+     * Encodes a sequence that does not contain unpaired surrogates. The caller
+     * needs to make sure that there is enough space, see {@link #encodedLength(CharSequence)}.
+     *
+     * @return position after the last written byte
+     */
+    static int encode(final CharSequence sequence, final byte[] bytes, final int offset) {
+        final int length = sequence.length();
+        int j = offset;
+        int i = 0;
+
+        // ASCII fast path without any branches on the char class
+        for (char c; i < length && (c = sequence.charAt(i)) < 0x80; i++) {
+            bytes[j++] = (byte) c;
+        }
+
+        for (; i < length; i++) {
+            final char c = sequence.charAt(i);
+            if (c < 0x80) {
+                bytes[j++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[j++] = (byte) (0xC0 | (c >>> 6));
+                bytes[j++] = (byte) (0x80 | (0x3F & c));
+            } else if (!Character.isSurrogate(c)) {
+                bytes[j++] = (byte) (0xE0 | (c >>> 12));
+                bytes[j++] = (byte) (0x80 | (0x3F & (c >>> 6)));
+                bytes[j++] = (byte) (0x80 | (0x3F & c));
+            } else {
+                final int codePoint = Character.toCodePoint(c, sequence.charAt(++i));
+                bytes[j++] = (byte) (0xF0 | (codePoint >>> 18));
+                bytes[j++] = (byte) (0x80 | (0x3F & (codePoint >>> 12)));
+                bytes[j++] = (byte) (0x80 | (0x3F & (codePoint >>> 6)));
+                bytes[j++] = (byte) (0x80 | (0x3F & codePoint));
+            }
+        }
+        return j;
+    }
+
+    /** Trailing bytes are within 0x80-0xBF, i.e., negative and not larger than (byte) 0xBF */
+    private static boolean isNotTrailingByte(byte b) {
+        return b > (byte) 0xBF;
+    }
+
+    private static int trailingByteValue(byte b) {
+        return b & 0x3F;
+    }
+
+    private Utf8() {
+    }
+
+    private static final long ASCII_MASK_LONG = 0x8080808080808080L;
+
+}
@@ -0,0 +1,190 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+package com.diffbot.primibuf.runtime;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Lazily decoded string that stores the raw UTF-8 bytes and only creates a
+ * {@link String} on first access. Strings that never get read thus never
+ * have to be decoded or copied into a UTF-16 {@code char[]}.
+ * <p>
+ * When decoding from an array backed {@link ProtoSource} the bytes are not
+ * copied, i.e., this is a view into the input buffer. The contents are only
+ * valid for as long as the input buffer does not get modified. Call
+ * {@link #toString()} (or {@link #copyBytes()}) before reusing the buffer.
+ * Other sources copy the bytes into internal storage that gets reused.
+ */
+public final class Utf8String implements CharSequence {
+
+    public static Utf8String newEmptyInstance() {
+        return new Utf8String();
+    }
+
+    public static Utf8String newInstance(String value) {
+        return newEmptyInstance().copyFrom(value);
+    }
+
+    private Utf8String() {
+    }
+
+    /**
+     * @return number of encoded bytes
+     */
+    public int size() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    /**
+     * Provides access to the array that contains the encoded bytes. Note that
+     * the data starts at {@link #offset()}, and that this may be the input
+     * buffer of a source.
+     */
+    public byte[] array() {
+        return bytes;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    /**
+     * @return a copy of the encoded bytes
+     */
+    public byte[] copyBytes() {
+        if (length == 0) return ProtoUtil.EMPTY_BYTE_ARRAY;
+        final byte[] copy = new byte[length];
+        System.arraycopy(bytes, offset, copy, 0, length);
+        return copy;
+    }
+
+    public Utf8String copyFrom(String value) {
+        final byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+        setView(encoded, 0, encoded.length);
+        string = value;
+        return this;
+    }
+
+    public Utf8String copyFrom(Utf8String other) {
+        System.arraycopy(other.bytes, other.offset, reserveStorage(other.length), 0, other.length);
+        setView(storage, 0, other.length);
+        string = other.string;
+        return this;
+    }
+
+    public Utf8String clear() {
+        setView(ProtoUtil.EMPTY_BYTE_ARRAY, 0, 0);
+        return this;
+    }
+
+    /**
+     * Points this string at the specified range without copying
+     */
+    void setView(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.string = null;
+    }
+
+    /**
+     * @return internal storage that can hold at least the specified number of bytes
+     */
+    byte[] reserveStorage(int size) {
+        if (storage.length < size) {
+            storage = new byte[size];
+        }
+        return storage;
+    }
+
+    /**
+     * Decodes the bytes on the first call and returns the cached result afterwards.
+     * Malformed input can't be rejected at this point, so it gets decoded with
+     * replacement characters.
+     */
+    @Override
+    public String toString() {
+        if (string == null) {
+            try {
+                string = Utf8.decode(bytes, offset, length);
+            } catch (InvalidProtocolBufferException malformed) {
+                string = new String(bytes, offset, length, StandardCharsets.UTF_8);
+            }
+        }
+        return string;
+    }
+
+    @Override
+    public int length() {
+        return toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    /**
+     * Compares the encoded bytes, so no decoding is required
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        Utf8String other = (Utf8String) o;
+
+        if (length != other.length)
+            return false;
+
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != other.bytes[other.offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = 1;
+        for (int i = 0; i < length; i++) {
+            result = 31 * result + bytes[offset + i];
+        }
+        return result;
+    }
+
+    private byte[] bytes = ProtoUtil.EMPTY_BYTE_ARRAY;
+    private int offset = 0;
+    private int length = 0;
+    private String string = "";
+    private byte[] storage = ProtoUtil.EMPTY_BYTE_ARRAY;
+
+}
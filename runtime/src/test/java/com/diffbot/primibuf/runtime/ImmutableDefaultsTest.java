@@ -0,0 +1,273 @@
+/*-
+ * #%L
+ * quickbuf-runtime
+ * %%
+ * Copyright (C) 2019 HEBI Robotics
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-3.0.html>.
+ * #L%
+ */
+
+
+package com.diffbot.primibuf.runtime;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks that the shared defaults returned by the getters of absent fields
+ * reject modifications instead of leaking them into other instances.
+ */
+public class ImmutableDefaultsTest {
+
+    @Test
+    public void testWriteThroughMessageGetter() {
+        Node src = Node.newInstance().setId(42);
+        Node x = Node.newInstance();
+
+        assertThrows(UnsupportedOperationException.class, () -> x.getChild().copyFrom(src));
+        assertThrows(UnsupportedOperationException.class, () -> x.getChild().mergeFrom(src));
+        assertThrows(UnsupportedOperationException.class, () -> x.getChild().mergeFrom(ProtoSource.newInstance(new byte[]{8, 42})));
+        assertThrows(UnsupportedOperationException.class, () -> x.getChild().clear());
+        assertThrows(UnsupportedOperationException.class, () -> x.getChild().getMutableChild());
+        assertThrows(UnsupportedOperationException.class, () -> x.getChild().getValues().add(1));
+
+        assertFalse(x.hasChild());
+        assertUntouched(x);
+        assertUntouched(Node.newInstance());
+    }
+
+    @Test
+    public void testWriteThroughRepeatedGetter() {
+        Node src = Node.newInstance().setId(42);
+        Node x = Node.newInstance();
+
+        assertThrows(UnsupportedOperationException.class, () -> x.getKids().add(src));
+        assertThrows(UnsupportedOperationException.class, () -> x.getKids().next());
+        assertThrows(UnsupportedOperationException.class, () -> x.getKids().addAll(new Node[]{src}));
+        assertThrows(UnsupportedOperationException.class, () -> x.getKids().copyFrom(new Node[]{src}));
+        assertThrows(UnsupportedOperationException.class, () -> x.getKids().clear());
+
+        assertFalse(x.hasKids());
+        assertUntouched(x);
+        assertUntouched(Node.newInstance());
+    }
+
+    @Test
+    public void testMutableGettersStillWork() {
+        Node src = Node.newInstance().setId(42);
+        Node x = Node.newInstance();
+        x.getMutableChild().copyFrom(src);
+        x.getMutableKids().add(src);
+        x.getValues().add(1);
+
+        assertTrue(x.hasChild());
+        assertEquals(42, x.getChild().getId());
+        assertEquals(1, x.getKids().length());
+        assertEquals(1, x.getValues().length());
+        assertUntouched(Node.newInstance());
+    }
+
+    private static void assertUntouched(Node node) {
+        assertEquals(0, node.getChild().getId());
+        assertEquals(0, node.getChild().getValues().length());
+        assertEquals(0, node.getKids().length());
+    }
+
+    /**
+     * Hand-written message in the shape of the generated code for
+     * <pre>
+     * optional int32 id = 1;
+     * optional Node child = 2;
+     * repeated Node kids = 3;
+     * repeated int32 values = 4 [packed = true]; // primitive store
+     * </pre>
+     */
+    static final class Node extends ProtoMessage<Node> {
+
+        public static Node newInstance() {
+            return new Node();
+        }
+
+        private Node() {
+            super();
+        }
+
+        private static final Node DEFAULT_INSTANCE = new Node().makeImmutable();
+
+        private static final RepeatedMessage<Node> _defaultKids = RepeatedMessage.newEmptyInstance(Node.getFactory()).makeImmutable();
+
+        static {
+            DEFAULT_INSTANCE.values.makeImmutable();
+        }
+
+        public static Node getDefaultInstance() {
+            return DEFAULT_INSTANCE;
+        }
+
+        private int id;
+
+        private Node child;
+
+        private RepeatedMessage<Node> kids;
+
+        private final RepeatedInt values = RepeatedInt.newEmptyInstance();
+
+        public int getId() {
+            return id;
+        }
+
+        public Node setId(final int value) {
+            checkMutable();
+            bitField0_ |= 0x00000001;
+            id = value;
+            return this;
+        }
+
+        public boolean hasChild() {
+            return (bitField0_ & 0x00000002) != 0;
+        }
+
+        public Node getChild() {
+            return child != null ? child : Node.getDefaultInstance();
+        }
+
+        public Node getMutableChild() {
+            checkMutable();
+            if (child == null) {
+                child = Node.newInstance();
+            }
+            bitField0_ |= 0x00000002;
+            return child;
+        }
+
+        public boolean hasKids() {
+            return (bitField0_ & 0x00000004) != 0;
+        }
+
+        public RepeatedMessage<Node> getKids() {
+            return kids != null ? kids : _defaultKids;
+        }
+
+        public RepeatedMessage<Node> getMutableKids() {
+            checkMutable();
+            if (kids == null) {
+                kids = RepeatedMessage.newEmptyInstance(Node.getFactory());
+            }
+            bitField0_ |= 0x00000004;
+            return kids;
+        }
+
+        public RepeatedInt getValues() {
+            return values;
+        }
+
+        @Override
+        public Node clear() {
+            checkMutable();
+            bitField0_ = 0;
+            cachedSize = -1;
+            frozen = false;
+            id = 0;
+            if (child != null) {
+                child.clear();
+            }
+            if (kids != null) {
+                kids.clear();
+            }
+            values.clear();
+            return this;
+        }
+
+        @Override
+        public Node copyFrom(final Node other) {
+            checkMutable();
+            if (other == this) {
+                return this;
+            }
+            clear();
+            return mergeFrom(other);
+        }
+
+        @Override
+        public Node mergeFrom(final Node other) {
+            checkMutable();
+            cachedSize = -1;
+            if ((other.bitField0_ & 0x00000001) != 0) {
+                setId(other.id);
+            }
+            if (other.hasChild()) {
+                getMutableChild().mergeFrom(other.child);
+            }
+            if (other.hasKids()) {
+                getMutableKids().addAll(other.kids);
+            }
+            values.addAll(other.values);
+            return this;
+        }
+
+        @Override
+        public Node mergeFrom(final ProtoSource input) throws IOException {
+            checkMutable();
+            while (true) {
+                int tag = input.readTag();
+                switch (tag) {
+                    case 8: {
+                        setId(input.readInt32());
+                        break;
+                    }
+                    case 0: {
+                        return this;
+                    }
+                    default: {
+                        if (!input.skipField(tag)) {
+                            return this;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void writeTo(final ProtoSink output) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected int computeSerializedSize() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        protected int computeHashCode() {
+            return bitField0_;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o == this;
+        }
+
+        public static MessageFactory<Node> getFactory() {
+            return Node::newInstance;
+        }
+
+    }
+
+}